@@ -0,0 +1,104 @@
+package org.hyperbard.dialify;
+
+import org.hyperbard.dialify.ContactsHelper.Contact;
+
+import android.database.AbstractCursor;
+
+/**
+ * A read-only cursor whose rows are held in {@link ContactSnapshot}s, exposing the same columns as a phones query
+ * made by {@link ContactsHelper} so it can be used anywhere such a cursor is expected.
+ * <p>
+ * Subclasses decide which snapshot and row the cursor position maps to; callers on hot paths can read fields straight
+ * from {@link #getSnapshot()} at {@link #getSnapshotRow()} without allocating.
+ */
+public abstract class AbstractSnapshotCursor extends AbstractCursor {
+
+	/** @return the snapshot holding the row at the current cursor position */
+	public abstract ContactSnapshot getSnapshot();
+
+	/** @return the row of {@link #getSnapshot()} at the current cursor position */
+	public abstract int getSnapshotRow();
+
+	/** @return a new {@link Contact} for the current cursor position */
+	public Contact getContact() {
+		return getSnapshot().getContact(getSnapshotRow());
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return ContactsHelper.PROJECTION_PHONES;
+	}
+
+	@Override
+	public String getString(int column) {
+		ContactSnapshot snapshot = getSnapshot();
+		int row = getSnapshotRow();
+
+		switch (column) {
+		case 1: return snapshot.getDisplayName(row);
+		case 3: return snapshot.getLabel(row);
+		case 4: return snapshot.getNumber(row);
+		default: return String.valueOf(getLong(column));
+		}
+	}
+
+	/** Text columns are parsed; as with the platform's cursors, null or non-numeric text reads as 0. */
+	@Override
+	public long getLong(int column) {
+		ContactSnapshot snapshot = getSnapshot();
+		int row = getSnapshotRow();
+
+		switch (column) {
+		case 0: return snapshot.getId(row);
+		case 1: return parseLong(snapshot.getDisplayName(row));
+		case 2: return snapshot.getTypeId(row);
+		case 3: return parseLong(snapshot.getLabel(row));
+		case 4: return parseLong(snapshot.getNumber(row));
+		case 5: return snapshot.getPersonId(row);
+		default: throw new IllegalArgumentException("No such column " + column);
+		}
+	}
+
+	private static long parseLong(String text) {
+		if (text == null) return 0;
+
+		try {
+			return Long.parseLong(text);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	@Override
+	public int getInt(int column) {
+		return (int)getLong(column);
+	}
+
+	@Override
+	public short getShort(int column) {
+		return (short)getLong(column);
+	}
+
+	@Override
+	public double getDouble(int column) {
+		return getLong(column);
+	}
+
+	@Override
+	public float getFloat(int column) {
+		return getLong(column);
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		switch (column) {
+		case 1:
+		case 3:
+		case 4:
+			return getString(column) == null;
+		default:
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.hyperbard.dialify;
+
+import org.hyperbard.dialify.NotificationHelper.NotificationType;
+
+import android.app.ListActivity;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+
+import org.hyperbard.dialify.R;
+
+/**
+ * Lists the selections shown by a bundled notification, opened by tapping it, and calls or texts whichever is chosen.
+ * <p>
+ * The status bar ignores intents on the views inside a notification before Honeycomb, so a bundled notification can
+ * only have the one intent. Everything needed to list the selections is carried in its extras, so choosing one works
+ * even if the process that posted it is gone.
+ */
+public class BundleActivity extends ListActivity {
+
+	/** The {@link NotificationType} codes of the bundled selections. */
+	public static final String EXTRA_TYPES = "org.hyperbard.dialify.types";
+
+	/** The display names of the bundled selections, in the same order as their types. */
+	public static final String EXTRA_NAMES = "org.hyperbard.dialify.names";
+
+	/** The numbers of the bundled selections, in the same order as their types. */
+	public static final String EXTRA_NUMBERS = "org.hyperbard.dialify.numbers";
+
+	private NotificationType[] _types;
+	private String[] _numbers;
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+
+		int[] codes = getIntent().getIntArrayExtra(EXTRA_TYPES);
+		String[] names = getIntent().getStringArrayExtra(EXTRA_NAMES);
+		_numbers = getIntent().getStringArrayExtra(EXTRA_NUMBERS);
+
+		if (codes == null || names == null || _numbers == null) {
+			finish();
+			return;
+		}
+
+		_types = new NotificationType[codes.length];
+		String[] entries = new String[codes.length];
+		for (int i = 0; i < codes.length; i++) {
+			_types[i] = NotificationType.forCode(codes[i]);
+			entries[i] = getString(R.string.bundle_entry,
+					(_types[i] != null) ? getString(_types[i].getVerbStringId()) : "", names[i], _numbers[i]);
+		}
+
+		setListAdapter(new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, entries));
+	}
+
+	@Override
+	protected void onListItemClick(ListView list, View view, int position, long id) {
+		NotificationType type = _types[position];
+
+		//the saved notifications may come from a later version with types this one doesn't know
+		if (type != null) startActivity(new Intent(type.getAction(), Uri.parse(type.getScheme() + _numbers[position])));
+		finish();
+	}
+
+}
@@ -1,23 +1,35 @@
 package org.hyperbard.dialify;
 
 import org.hyperbard.dialify.ContactsHelper.Contact;
+import org.hyperbard.dialify.Metrics.Timer;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.CheckedTextView;
 import android.widget.ResourceCursorAdapter;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import org.hyperbard.dialify.R;
 
 /**
- * Binds data from a contacts cursor (returned by methods in {@link ContactsHelper}) to the contact.xml view.
+ * Binds data from a contacts cursor (returned by methods in {@link ContactsHelper}) to the contact.xml view, and
+ * indexes it by first letter for fast scrolling.
  */
-public class ContactCursorAdapter extends ResourceCursorAdapter {
+public class ContactCursorAdapter extends ResourceCursorAdapter implements SectionIndexer {
 
+	/** The views of a row, looked up once when the row is created. */
+	private static class ViewHolder {
+		CheckedTextView contactNameView;
+		TextView contactTypeView;
+		TextView contactNumberView;
+	}
+	
 	private SelectionManager _selectionManager;
 	private ContactsHelper _contactsHelper;
+	private ContactSectionIndexer _sectionIndexer;
 	
 	public ContactCursorAdapter(
 			Context context,
@@ -27,35 +39,90 @@ public class ContactCursorAdapter extends ResourceCursorAdapter {
 			SelectionManager selectionManager
 	) {
 		super(context, layout, cursor, autoRequery);
-		init(context, selectionManager);
+		init(context, cursor, selectionManager);
 	}
 
 	public ContactCursorAdapter(Context context, int layout, Cursor cursor, SelectionManager selectionManager) {
 		super(context, layout, cursor);
-	 	init(context, selectionManager);
+	 	init(context, cursor, selectionManager);
 	}
 
-	private void init(Context context, SelectionManager selectionManager) {
+	private void init(Context context, Cursor cursor, SelectionManager selectionManager) {
 		_selectionManager = selectionManager;
-		_contactsHelper = new ContactsHelper(context);
+		_contactsHelper = DialifyApplication.get(context).getContactsHelper();
+		_sectionIndexer = new ContactSectionIndexer(cursor);
+	}
+	
+	@Override
+	public void changeCursor(Cursor cursor) {
+		super.changeCursor(cursor);
+		_sectionIndexer.setCursor(cursor);
+	}
+	
+	@Override
+	public View newView(Context context, Cursor cursor, ViewGroup parent) {
+		View view = super.newView(context, cursor, parent);
+		
+		ViewHolder holder = new ViewHolder();
+		holder.contactNameView = (CheckedTextView)view.findViewById(R.id.contact_name);
+		holder.contactTypeView = (TextView)view.findViewById(R.id.contact_type);
+		holder.contactNumberView = (TextView)view.findViewById(R.id.contact_number);
+		view.setTag(holder);
+		
+		return view;
 	}
 
 	@Override
 	public void bindView(View view, Context context, Cursor cursor) {
+		long start = Metrics.start();
+		ViewHolder holder = (ViewHolder)view.getTag();
+		
+		if (cursor instanceof AbstractSnapshotCursor) {
+			AbstractSnapshotCursor snapshotCursor = (AbstractSnapshotCursor)cursor;
+			bindSnapshotRow(holder, snapshotCursor.getSnapshot(), snapshotCursor.getSnapshotRow());
+			Metrics.record(Timer.BIND_VIEW, start);
+			return;
+		}
+		
 		Contact contact = _contactsHelper.getContactAtCursor(cursor);
 		
 		//set the contact name
-		CheckedTextView contactNameView = (CheckedTextView)view.findViewById(R.id.contact_name);
-		contactNameView.setText(contact.getDisplayName());
-		contactNameView.setChecked(_selectionManager.isSelected(contact.getId()));
+		holder.contactNameView.setText(contact.getDisplayName());
+		holder.contactNameView.setChecked(_selectionManager.isSelected(contact.getId()));
+		
+		//set the contact type
+		holder.contactTypeView.setText(contact.getType());
+		
+		//set the contact number
+		holder.contactNumberView.setText(contact.getNumber());
+		
+		Metrics.record(Timer.BIND_VIEW, start);
+	}
+	
+	/** Binds straight from the snapshot's columns, so no {@link Contact} or strings are allocated per row. */
+	private void bindSnapshotRow(ViewHolder holder, ContactSnapshot snapshot, int row) {
+		//set the contact name
+		holder.contactNameView.setText(snapshot.getNameChars(), snapshot.getNameStart(row), snapshot.getNameLength(row));
+		holder.contactNameView.setChecked(_selectionManager.isSelected(snapshot.getId(row)));
 		
 		//set the contact type
-		TextView contactTypeView = (TextView)view.findViewById(R.id.contact_type);
-		contactTypeView.setText(contact.getType());
+		holder.contactTypeView.setText(snapshot.getType(row));
 		
 		//set the contact number
-		TextView contactNumberView = (TextView)view.findViewById(R.id.contact_number);
-		contactNumberView.setText(contact.getNumber());
+		holder.contactNumberView.setText(
+				snapshot.getNumberChars(), snapshot.getNumberStart(row), snapshot.getNumberLength(row));
+	}
+	
+	public Object[] getSections() {
+		return _sectionIndexer.getSections();
+	}
+	
+	public int getPositionForSection(int section) {
+		return _sectionIndexer.getPositionForSection(section);
+	}
+	
+	public int getSectionForPosition(int position) {
+		return _sectionIndexer.getSectionForPosition(position);
 	}
 	
 }
@@ -0,0 +1,465 @@
+package org.hyperbard.dialify;
+
+/**
+ * A sorted token index over the display names and numbers of a {@link ContactSnapshot}, used to filter contacts as
+ * the user types.
+ * <p>
+ * A token starts at each word of a name and at the start of each number. Tokens are stored as offsets into the
+ * snapshot's char buffers and sorted case-insensitively, so all tokens starting with a given prefix form one range
+ * found by binary search. A query matches a row if every whitespace-separated term of the query is a prefix of one of
+ * the row's tokens. Queries that extend the previous one only re-check the previous results.
+ * <p>
+ * For dial pad searches the index also holds each name spelled as dial pad digits (T9, with a token at each word and
+ * separators dropped so that "John Smith" can be reached with 5646 or 76484 or 5646764) and each number reduced to
+ * its digits.
+ * <p>
+ * An index is built for one snapshot and never updated; a new snapshot gets a new index.
+ */
+public class ContactIndex {
+
+	/** Tokens over one of the snapshot's char buffers. */
+	private static class TokenTable {
+		private char[] _chars;
+
+		//tokens run from their start to the end of their row's text
+		private int[] _starts;
+		private int[] _ends;
+		private int[] _rows;
+
+		public TokenTable(char[] chars, int[] starts, int[] ends, int[] rows, int count) {
+			_chars = chars;
+			_starts = new int[count];
+			_ends = new int[count];
+			_rows = new int[count];
+
+			//sort token positions by their text
+			int[] order = new int[count];
+			for (int i = 0; i < count; i++) order[i] = i;
+			sort(order, new int[count], 0, count, starts, ends);
+
+			for (int i = 0; i < count; i++) {
+				_starts[i] = starts[order[i]];
+				_ends[i] = ends[order[i]];
+				_rows[i] = rows[order[i]];
+			}
+		}
+
+		/** Merge sort of token positions, ordered by their text. */
+		private void sort(int[] order, int[] scratch, int from, int to, int[] starts, int[] ends) {
+			if (to - from < 2) return;
+
+			int middle = (from + to) >>> 1;
+			sort(order, scratch, from, middle, starts, ends);
+			sort(order, scratch, middle, to, starts, ends);
+
+			int left = from, right = middle, out = from;
+			while (left < middle && right < to) {
+				int a = order[left], b = order[right];
+				if (compare(_chars, starts[a], ends[a], _chars, starts[b], ends[b]) <= 0) {
+					scratch[out++] = order[left++];
+				} else {
+					scratch[out++] = order[right++];
+				}
+			}
+			while (left < middle) scratch[out++] = order[left++];
+			while (right < to) scratch[out++] = order[right++];
+
+			System.arraycopy(scratch, from, order, from, to - from);
+		}
+
+		public int size() {
+			return _rows.length;
+		}
+
+		public int getRow(int token) {
+			return _rows[token];
+		}
+
+		/** @return the index of the first token that the term is a prefix of or sorts before */
+		public int lowerBound(char[] term, int termLength) {
+			int low = 0, high = _rows.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (comparePrefix(middle, term, termLength) < 0) low = middle + 1;
+				else high = middle;
+			}
+			return low;
+		}
+
+		/** @return the index after the last token that the term is a prefix of */
+		public int upperBound(char[] term, int termLength) {
+			int low = 0, high = _rows.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (comparePrefix(middle, term, termLength) <= 0) low = middle + 1;
+				else high = middle;
+			}
+			return low;
+		}
+
+		/** @return 0 if the term is a prefix of the token, otherwise the order of the token relative to the term */
+		private int comparePrefix(int token, char[] term, int termLength) {
+			int start = _starts[token];
+			int length = Math.min(_ends[token] - start, termLength);
+
+			for (int i = 0; i < length; i++) {
+				int difference = fold(_chars[start + i]) - term[i];
+				if (difference != 0) return difference;
+			}
+
+			return (length == termLength) ? 0 : -1;
+		}
+	}
+
+	/** Dial pad digit for each letter from a to z. */
+	private static final String DIAL_PAD_LETTERS = "22233344455566677778889999";
+
+	private ContactSnapshot _snapshot;
+
+	private TokenTable _names;
+	private TokenTable _numbers;
+
+	//names as dial pad digits and numbers reduced to their digits
+	private TokenTable _dialPadNames;
+	private TokenTable _numberDigits;
+
+	//scratch bitset of matched rows, cleared after each lookup
+	private long[] _marks;
+
+	//the previous search, so a query that extends it only has to re-check its results
+	private char[][] _lastTerms;
+	private int[] _lastRows;
+
+	public ContactIndex(ContactSnapshot snapshot) {
+		_snapshot = snapshot;
+		int count = snapshot.getCount();
+
+		//a token for each word of each name
+		char[] names = snapshot.getNameChars();
+		int[] starts = new int[count * 2];
+		int[] ends = new int[count * 2];
+		int[] rows = new int[count * 2];
+		int tokens = 0;
+
+		for (int row = 0; row < count; row++) {
+			int start = snapshot.getNameStart(row);
+			int end = start + snapshot.getNameLength(row);
+
+			for (int i = start; i < end; i++) {
+				if (!isWordStart(names, start, i)) continue;
+
+				if (tokens == starts.length) {
+					starts = grow(starts);
+					ends = grow(ends);
+					rows = grow(rows);
+				}
+
+				starts[tokens] = i;
+				ends[tokens] = end;
+				rows[tokens] = row;
+				tokens++;
+			}
+		}
+
+		_names = new TokenTable(names, starts, ends, rows, tokens);
+
+		//a single token for each number
+		starts = new int[count];
+		ends = new int[count];
+		rows = new int[count];
+
+		for (int row = 0; row < count; row++) {
+			starts[row] = snapshot.getNumberStart(row);
+			ends[row] = starts[row] + snapshot.getNumberLength(row);
+			rows[row] = row;
+		}
+
+		_numbers = new TokenTable(snapshot.getNumberChars(), starts, ends, rows, count);
+
+		_dialPadNames = buildDialPadNames(snapshot);
+		_numberDigits = buildNumberDigits(snapshot);
+
+		_marks = new long[(count + 63) >>> 6];
+	}
+
+	/** @return a table with a token at each word of each name, spelled as dial pad digits */
+	private static TokenTable buildDialPadNames(ContactSnapshot snapshot) {
+		int count = snapshot.getCount();
+		char[] names = snapshot.getNameChars();
+		char[] digits = new char[names.length];
+		int length = 0;
+
+		int[] starts = new int[count * 2];
+		int[] ends = new int[count * 2];
+		int[] rows = new int[count * 2];
+		int tokens = 0;
+
+		for (int row = 0; row < count; row++) {
+			int start = snapshot.getNameStart(row);
+			int end = start + snapshot.getNameLength(row);
+			int firstToken = tokens;
+
+			for (int i = start; i < end; i++) {
+				if (!Character.isLetterOrDigit(names[i])) continue;
+
+				if (isWordStart(names, start, i)) {
+					if (tokens == starts.length) {
+						starts = grow(starts);
+						ends = grow(ends);
+						rows = grow(rows);
+					}
+
+					starts[tokens] = length;
+					rows[tokens] = row;
+					tokens++;
+				}
+
+				digits[length++] = toDialPadDigit(names[i]);
+			}
+
+			//each token runs to the end of the row's digits
+			for (int token = firstToken; token < tokens; token++) ends[token] = length;
+		}
+
+		return new TokenTable(digits, starts, ends, rows, tokens);
+	}
+
+	/** @return a table with a token for each number, reduced to its digits */
+	private static TokenTable buildNumberDigits(ContactSnapshot snapshot) {
+		int count = snapshot.getCount();
+		char[] numbers = snapshot.getNumberChars();
+		char[] digits = new char[numbers.length];
+		int length = 0;
+
+		int[] starts = new int[count];
+		int[] ends = new int[count];
+		int[] rows = new int[count];
+
+		for (int row = 0; row < count; row++) {
+			int start = snapshot.getNumberStart(row);
+			int end = start + snapshot.getNumberLength(row);
+
+			starts[row] = length;
+			for (int i = start; i < end; i++) {
+				if (numbers[i] >= '0' && numbers[i] <= '9') digits[length++] = numbers[i];
+			}
+			ends[row] = length;
+			rows[row] = row;
+		}
+
+		return new TokenTable(digits, starts, ends, rows, count);
+	}
+
+	/** @return the dial pad digit for a letter or digit; other characters are returned as they are */
+	private static char toDialPadDigit(char c) {
+		char lower = Character.toLowerCase(c);
+		if (lower >= 'a' && lower <= 'z') return DIAL_PAD_LETTERS.charAt(lower - 'a');
+		return c;
+	}
+
+	/** @return the snapshot the index was built over */
+	public ContactSnapshot getSnapshot() {
+		return _snapshot;
+	}
+
+	/**
+	 * @return the rows matching the query in ascending order, or null if the query is blank (i.e. everything
+	 *         matches)
+	 */
+	public synchronized int[] search(CharSequence query) {
+		char[][] terms = split(query);
+		if (terms.length == 0) {
+			_lastTerms = null;
+			_lastRows = null;
+			return null;
+		}
+
+		int[] rows;
+		if (_lastTerms != null && narrows(_lastTerms, terms)) {
+			//every match of the new query was a match of the previous one
+			rows = filter(_lastRows, terms, 0);
+		} else {
+			rows = filter(lookup(terms[0]), terms, 1);
+		}
+
+		_lastTerms = terms;
+		_lastRows = rows;
+
+		return rows;
+	}
+
+	/**
+	 * Matches dial pad digits against names spelled as digits and against the digits of numbers.
+	 * @return the matching rows in ascending order, or null if there are no digits (i.e. everything matches)
+	 */
+	public synchronized int[] searchDialPad(CharSequence query) {
+		char[] digits = new char[query.length()];
+		int length = 0;
+
+		for (int i = 0; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if (c >= '0' && c <= '9') digits[length++] = c;
+		}
+
+		if (length == 0) return null;
+		return lookup(trim(digits, length), _dialPadNames, _numberDigits);
+	}
+
+	/** @return the rows, in ascending order, with a name or number token the term is a prefix of */
+	private int[] lookup(char[] term) {
+		return lookup(term, _names, _numbers);
+	}
+
+	/** @return the rows, in ascending order, with a token in either table that the term is a prefix of */
+	private int[] lookup(char[] term, TokenTable first, TokenTable second) {
+		int found = mark(first, term) + mark(second, term);
+
+		//read the marked rows back in order, clearing the marks as we go
+		int[] rows = new int[found];
+		int row = 0;
+
+		for (int w = 0; w < _marks.length; w++) {
+			long word = _marks[w];
+			_marks[w] = 0;
+
+			while (word != 0) {
+				rows[row++] = (w << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+			}
+		}
+
+		return rows;
+	}
+
+	/** Marks the rows of the tokens the term is a prefix of. @return the number of rows newly marked */
+	private int mark(TokenTable table, char[] term) {
+		int from = table.lowerBound(term, term.length);
+		int to = table.upperBound(term, term.length);
+		int marked = 0;
+
+		for (int i = from; i < to; i++) {
+			int row = table.getRow(i);
+			long bit = 1L << row;
+
+			if ((_marks[row >>> 6] & bit) == 0) {
+				_marks[row >>> 6] |= bit;
+				marked++;
+			}
+		}
+
+		return marked;
+	}
+
+	/** @return the given rows that match every term from the given one onwards */
+	private int[] filter(int[] rows, char[][] terms, int firstTerm) {
+		if (firstTerm >= terms.length) return rows;
+
+		int[] matches = new int[rows.length];
+		int found = 0;
+
+		for (int row : rows) {
+			boolean matchesAll = true;
+
+			for (int t = firstTerm; t < terms.length && matchesAll; t++) {
+				matchesAll = matches(row, terms[t]);
+			}
+
+			if (matchesAll) matches[found++] = row;
+		}
+
+		return trim(matches, found);
+	}
+
+	/** @return true if the term is a prefix of one of the row's tokens */
+	private boolean matches(int row, char[] term) {
+		char[] names = _snapshot.getNameChars();
+		int start = _snapshot.getNameStart(row);
+		int end = start + _snapshot.getNameLength(row);
+
+		for (int i = start; i < end; i++) {
+			if (isWordStart(names, start, i) && isPrefix(term, names, i, end)) return true;
+		}
+
+		int numberStart = _snapshot.getNumberStart(row);
+		return isPrefix(term, _snapshot.getNumberChars(), numberStart, numberStart + _snapshot.getNumberLength(row));
+	}
+
+	/** @return true if each previous term is a prefix of the corresponding new term */
+	private static boolean narrows(char[][] previous, char[][] terms) {
+		if (terms.length < previous.length) return false;
+
+		for (int t = 0; t < previous.length; t++) {
+			if (!isPrefix(previous[t], terms[t], 0, terms[t].length)) return false;
+		}
+
+		return true;
+	}
+
+	/** @return true if the (folded) term is a prefix of chars[start, end) */
+	private static boolean isPrefix(char[] term, char[] chars, int start, int end) {
+		if (end - start < term.length) return false;
+
+		for (int i = 0; i < term.length; i++) {
+			if (fold(chars[start + i]) != term[i]) return false;
+		}
+
+		return true;
+	}
+
+	private static boolean isWordStart(char[] chars, int start, int i) {
+		return Character.isLetterOrDigit(chars[i]) && (i == start || !Character.isLetterOrDigit(chars[i - 1]));
+	}
+
+	/** @return the folded, whitespace-separated terms of the query */
+	private static char[][] split(CharSequence query) {
+		String[] words = query.toString().trim().split("\\s+");
+		if (words.length == 1 && words[0].length() == 0) return new char[0][];
+
+		char[][] terms = new char[words.length][];
+		for (int t = 0; t < words.length; t++) {
+			terms[t] = words[t].toCharArray();
+			for (int i = 0; i < terms[t].length; i++) terms[t][i] = fold(terms[t][i]);
+		}
+
+		return terms;
+	}
+
+	private static char fold(char c) {
+		return Character.toLowerCase(c);
+	}
+
+	/** Compares two runs of text case-insensitively. */
+	private static int compare(char[] a, int aStart, int aEnd, char[] b, int bStart, int bEnd) {
+		int length = Math.min(aEnd - aStart, bEnd - bStart);
+
+		for (int i = 0; i < length; i++) {
+			int difference = fold(a[aStart + i]) - fold(b[bStart + i]);
+			if (difference != 0) return difference;
+		}
+
+		return (aEnd - aStart) - (bEnd - bStart);
+	}
+
+	private static int[] grow(int[] array) {
+		int[] grown = new int[Math.max(16, array.length * 2)];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static int[] trim(int[] array, int length) {
+		if (length == array.length) return array;
+
+		int[] trimmed = new int[length];
+		System.arraycopy(array, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+	private static char[] trim(char[] array, int length) {
+		if (length == array.length) return array;
+
+		char[] trimmed = new char[length];
+		System.arraycopy(array, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+}
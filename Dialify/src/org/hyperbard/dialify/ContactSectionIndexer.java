@@ -0,0 +1,223 @@
+package org.hyperbard.dialify;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.os.Process;
+import android.widget.SectionIndexer;
+
+/**
+ * Indexes a {@link ContactsHelper.Sort#ASC} contacts cursor by the first letter of display names, for fast scrolling.
+ * <p>
+ * The sections are fixed ("#" then A to Z), so they never need rebuilding. The position at which each section starts
+ * is found by binary search over the cursor and remembered until the cursor's data changes, so a jump costs
+ * O(log n) moves at most. Names are grouped as the provider sorts them: anything before "A" under "#", and anything
+ * after "Z" under "Z".
+ * <p>
+ * A {@link PagedContactsCursor} is never searched, as each move could read a window on the main thread and push the
+ * visible rows' windows out. Its section starts are instead counted on a background thread in one pass over just the
+ * names. Until that finishes, the starts counted for the previous paged cursor are used, as a cursor is usually
+ * replaced because a few contacts changed, which moves each start by no more than the number of rows that changed;
+ * failing those, starts are estimated from the position. A count for a cursor that has since been replaced is
+ * abandoned.
+ */
+public class ContactSectionIndexer implements SectionIndexer {
+
+	private static final String[] SECTIONS = {
+		"#", "A", "B", "C", "D", "E", "F", "G", "H", "I", "J", "K", "L", "M",
+		"N", "O", "P", "Q", "R", "S", "T", "U", "V", "W", "X", "Y", "Z"
+	};
+
+	//counts the sections of paged cursors, one at a time, for every indexer
+	private static final ExecutorService COUNTER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "ContactSectionIndexer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	//names read between checks that the cursor being counted is still current
+	private static final int NAMES_PER_CHECK = 500;
+
+	//volatile as the background count for a paged cursor checks it's still current
+	private volatile Cursor _cursor;
+
+	//the count for the current paged cursor, cancelled if the cursor is replaced before it starts
+	private Future<?> _counting;
+
+	//the first position of each section, or -1 if it hasn't been looked up since the data last changed
+	private int[] _positions = new int[SECTIONS.length];
+
+	//the first position of each section of the current paged cursor or, until it has been counted, of the previous
+	//one; null until a paged cursor has been counted
+	private volatile int[] _pagedPositions;
+
+	private DataSetObserver _observer = new DataSetObserver() {
+		@Override
+		public void onChanged() {
+			reset();
+		}
+
+		@Override
+		public void onInvalidated() {
+			reset();
+		}
+	};
+
+	public ContactSectionIndexer(Cursor cursor) {
+		setCursor(cursor);
+	}
+
+	/** Switches to a new cursor, e.g. when the list is filtered. */
+	public void setCursor(Cursor cursor) {
+		if (_cursor != null) _cursor.unregisterDataSetObserver(_observer);
+
+		synchronized (this) {
+			_cursor = cursor;
+
+			if (_counting != null) {
+				_counting.cancel(false);
+				_counting = null;
+			}
+		}
+
+		if (_cursor != null) _cursor.registerDataSetObserver(_observer);
+
+		reset();
+
+		//every row is in memory, so there's no reason to wait for the first jump
+		if (_cursor instanceof SnapshotCursor) {
+			for (int section = 0; section < SECTIONS.length; section++) getPositionForSection(section);
+		}
+
+		if (_cursor instanceof PagedContactsCursor) countPagedPositions((PagedContactsCursor)_cursor);
+	}
+
+	/** Counts the sections of the paged cursor on the counting thread, giving up once it is no longer current. */
+	private synchronized void countPagedPositions(final PagedContactsCursor cursor) {
+		_counting = COUNTER.submit(new Runnable() {
+			public void run() {
+				if (_cursor != cursor) return;
+
+				int[] counts = new int[SECTIONS.length];
+				Cursor names = cursor.queryNames();
+
+				try {
+					while (names.moveToNext()) {
+						counts[getSection(names.getString(0))]++;
+						if (names.getPosition() % NAMES_PER_CHECK == 0 && _cursor != cursor) return;
+					}
+				} finally {
+					names.close();
+				}
+
+				//the names are in the cursor's order, so each section starts after all those before it
+				int[] positions = new int[SECTIONS.length];
+				for (int section = 1; section < SECTIONS.length; section++) {
+					positions[section] = positions[section - 1] + counts[section - 1];
+				}
+
+				synchronized (ContactSectionIndexer.this) {
+					if (_cursor == cursor) _pagedPositions = positions;
+				}
+			}
+		});
+	}
+
+	private void reset() {
+		for (int i = 0; i < _positions.length; i++) _positions[i] = -1;
+	}
+
+	public Object[] getSections() {
+		return SECTIONS;
+	}
+
+	public int getPositionForSection(int section) {
+		if (_cursor == null || _cursor.isClosed()) return 0;
+		section = Math.max(0, Math.min(section, SECTIONS.length - 1));
+
+		if (_cursor instanceof PagedContactsCursor) {
+			int[] positions = _pagedPositions;
+			if (positions == null) return section * _cursor.getCount() / SECTIONS.length;
+			return Math.min(positions[section], _cursor.getCount());
+		}
+
+		if (_positions[section] == -1) {
+			//each section starts where the previous one ends, so only search the rows that could hold it
+			int low = 0;
+			for (int previous = section - 1; previous >= 0; previous--) {
+				if (_positions[previous] != -1) {
+					low = _positions[previous];
+					break;
+				}
+			}
+
+			int high = _cursor.getCount();
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (getSectionForPosition(middle) < section) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+
+			_positions[section] = low;
+		}
+
+		return _positions[section];
+	}
+
+	public int getSectionForPosition(int position) {
+		if (_cursor == null || _cursor.isClosed()) return 0;
+
+		if (_cursor instanceof PagedContactsCursor) {
+			int[] positions = _pagedPositions;
+			if (positions == null) {
+				return Math.min(SECTIONS.length - 1, position * SECTIONS.length / Math.max(1, _cursor.getCount()));
+			}
+
+			int section = SECTIONS.length - 1;
+			while (section > 0 && positions[section] > position) section--;
+			return section;
+		}
+
+		if (!_cursor.moveToPosition(position)) return 0;
+
+		//snapshot cursors can be read without allocating a string for the name
+		if (_cursor instanceof AbstractSnapshotCursor) {
+			AbstractSnapshotCursor cursor = (AbstractSnapshotCursor)_cursor;
+			ContactSnapshot snapshot = cursor.getSnapshot();
+			int row = cursor.getSnapshotRow();
+
+			if (snapshot.getNameLength(row) == 0) return 0;
+			return getSection(snapshot.getNameChars()[snapshot.getNameStart(row)]);
+		}
+
+		return getSection(_cursor.getString(1));
+	}
+
+	/** @return the section of the name */
+	private static int getSection(String name) {
+		return (name == null || name.length() == 0) ? 0 : getSection(name.charAt(0));
+	}
+
+	/** @return the section of names starting with the given character */
+	private static int getSection(char c) {
+		if (c >= 'a' && c <= 'z') c -= 'a' - 'A';
+		if (c < 'A') return 0;
+		if (c > 'Z') return SECTIONS.length - 1;
+		return c - 'A' + 1;
+	}
+
+}
@@ -0,0 +1,279 @@
+package org.hyperbard.dialify;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.hyperbard.dialify.ContactsHelper.Contact;
+import org.hyperbard.dialify.ContactsHelper.Sort;
+
+import android.provider.Contacts.Phones;
+
+/**
+ * An in-memory copy of phone rows read from the contacts provider, in {@link Sort#ASC} order.
+ * <p>
+ * Rows are stored column by column (parallel arrays, with names and numbers packed into shared char buffers) so
+ * that reading a field by row index never allocates. Rows are appended while loading and the snapshot is treated as
+ * immutable once {@link #build()} has been called.
+ */
+public class ContactSnapshot {
+
+	private int _count;
+
+	private long[] _ids;
+	private long[] _personIds;
+	private int[] _typeIds;
+
+	//type labels are interned, so every row of a given type shares one string
+	private String[] _types;
+
+	//names and numbers are packed end to end; row i spans [offsets[i], offsets[i + 1])
+	private char[] _names;
+	private int[] _nameOffsets;
+	private char[] _numbers;
+	private int[] _numberOffsets;
+
+	//contact IDs in ascending order and the row of each, for allocation-free lookups by ID
+	private long[] _sortedIds;
+	private int[] _sortedIdRows;
+
+	//only needed while loading
+	private HashMap<String, String> _internedTypes;
+
+	public ContactSnapshot(int capacity) {
+		_ids = new long[capacity];
+		_personIds = new long[capacity];
+		_typeIds = new int[capacity];
+		_types = new String[capacity];
+		_names = new char[capacity * 16];
+		_nameOffsets = new int[capacity + 1];
+		_numbers = new char[capacity * 12];
+		_numberOffsets = new int[capacity + 1];
+		_internedTypes = new HashMap<String, String>();
+	}
+
+	/** Appends a row while loading. Rows must be added in {@link Sort#ASC} order. */
+	void add(long id, long personId, String displayName, String number, int typeId, String type) {
+		if (_count == _ids.length) grow();
+
+		_ids[_count] = id;
+		_personIds[_count] = personId;
+		_typeIds[_count] = typeId;
+
+		String interned = _internedTypes.get(type);
+		if (interned == null && type != null) {
+			_internedTypes.put(type, type);
+			interned = type;
+		}
+		_types[_count] = interned;
+
+		_names = append(_names, _nameOffsets, _count, displayName);
+		_numbers = append(_numbers, _numberOffsets, _count, number);
+
+		_count++;
+	}
+
+	/** Appends a copy of another snapshot's row while loading, without decoding its name and number. */
+	void add(ContactSnapshot from, int row) {
+		if (_count == _ids.length) grow();
+
+		_ids[_count] = from._ids[row];
+		_personIds[_count] = from._personIds[row];
+		_typeIds[_count] = from._typeIds[row];
+
+		//already interned in the other snapshot, but this one may hold the same label from another row
+		String type = from._types[row];
+		String interned = _internedTypes.get(type);
+		if (interned == null && type != null) {
+			_internedTypes.put(type, type);
+			interned = type;
+		}
+		_types[_count] = interned;
+
+		_names = append(_names, _nameOffsets, _count, from._names, from.getNameStart(row), from.getNameLength(row));
+		_numbers = append(
+				_numbers, _numberOffsets, _count, from._numbers, from.getNumberStart(row), from.getNumberLength(row));
+
+		_count++;
+	}
+
+	/** Finishes loading, building the ID index. */
+	void build() {
+		_internedTypes = null;
+
+		_sortedIds = copy(_ids, _count);
+		Arrays.sort(_sortedIds);
+
+		_sortedIdRows = new int[_count];
+		for (int row = 0; row < _count; row++) {
+			_sortedIdRows[Arrays.binarySearch(_sortedIds, _ids[row])] = row;
+		}
+	}
+
+	private void grow() {
+		int capacity = Math.max(16, _ids.length * 2);
+		_ids = copy(_ids, capacity);
+		_personIds = copy(_personIds, capacity);
+		_typeIds = copy(_typeIds, capacity);
+
+		String[] types = new String[capacity];
+		System.arraycopy(_types, 0, types, 0, _count);
+		_types = types;
+
+		_nameOffsets = copy(_nameOffsets, capacity + 1);
+		_numberOffsets = copy(_numberOffsets, capacity + 1);
+	}
+
+	/** Writes value at the end of buffer for the given row, growing the buffer if needed. */
+	private static char[] append(char[] buffer, int[] offsets, int row, String value) {
+		int length = (value != null) ? value.length() : 0;
+		buffer = reserve(buffer, offsets, row, length);
+
+		if (length > 0) value.getChars(0, length, buffer, offsets[row]);
+		return buffer;
+	}
+
+	/** Writes the given chars at the end of buffer for the given row, growing the buffer if needed. */
+	private static char[] append(char[] buffer, int[] offsets, int row, char[] chars, int start, int length) {
+		buffer = reserve(buffer, offsets, row, length);
+
+		System.arraycopy(chars, start, buffer, offsets[row], length);
+		return buffer;
+	}
+
+	/** Sets the end of the given row, growing the buffer if it won't fit. */
+	private static char[] reserve(char[] buffer, int[] offsets, int row, int length) {
+		int start = offsets[row];
+
+		if (start + length > buffer.length) {
+			char[] grown = new char[Math.max(buffer.length * 2, start + length)];
+			System.arraycopy(buffer, 0, grown, 0, start);
+			buffer = grown;
+		}
+
+		offsets[row + 1] = start + length;
+		return buffer;
+	}
+
+	private static long[] copy(long[] array, int length) {
+		long[] copy = new long[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	private static int[] copy(int[] array, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	public int getCount() {
+		return _count;
+	}
+
+	public long getId(int row) {
+		return _ids[row];
+	}
+
+	public long getPersonId(int row) {
+		return _personIds[row];
+	}
+
+	/** @return the raw {@link Phones#TYPE} of the row */
+	public int getTypeId(int row) {
+		return _typeIds[row];
+	}
+
+	/** @return the contact type or custom label of the row */
+	public String getType(int row) {
+		return _types[row];
+	}
+
+	/** @return the raw {@link Phones#LABEL} of the row, which is only set for custom types */
+	public String getLabel(int row) {
+		return (_typeIds[row] == Phones.TYPE_CUSTOM) ? _types[row] : null;
+	}
+
+	/** @return the buffer holding every display name; see {@link #getNameStart(int)} */
+	public char[] getNameChars() {
+		return _names;
+	}
+
+	public int getNameStart(int row) {
+		return _nameOffsets[row];
+	}
+
+	public int getNameLength(int row) {
+		return _nameOffsets[row + 1] - _nameOffsets[row];
+	}
+
+	/** @return true if the row's display name is the given chars, comparing without allocating */
+	public boolean nameEquals(int row, char[] chars, int length) {
+		return regionEquals(_names, getNameStart(row), getNameLength(row), chars, length);
+	}
+
+	/** Allocates; prefer {@link #getNameChars()} on hot paths. */
+	public String getDisplayName(int row) {
+		return new String(_names, getNameStart(row), getNameLength(row));
+	}
+
+	/** @return the buffer holding every number; see {@link #getNumberStart(int)} */
+	public char[] getNumberChars() {
+		return _numbers;
+	}
+
+	public int getNumberStart(int row) {
+		return _numberOffsets[row];
+	}
+
+	public int getNumberLength(int row) {
+		return _numberOffsets[row + 1] - _numberOffsets[row];
+	}
+
+	/** @return true if the row's number is the given chars, comparing without allocating */
+	public boolean numberEquals(int row, char[] chars, int length) {
+		return regionEquals(_numbers, getNumberStart(row), getNumberLength(row), chars, length);
+	}
+
+	private static boolean regionEquals(char[] buffer, int start, int length, char[] chars, int charsLength) {
+		if (length != charsLength) return false;
+
+		for (int i = 0; i < length; i++) {
+			if (buffer[start + i] != chars[i]) return false;
+		}
+
+		return true;
+	}
+
+	/** Allocates; prefer {@link #getNumberChars()} on hot paths. */
+	public String getNumber(int row) {
+		return new String(_numbers, getNumberStart(row), getNumberLength(row));
+	}
+
+	/** Allocates a new {@link Contact} holding the row's fields. */
+	public Contact getContact(int row) {
+		return new Contact(getId(row), getPersonId(row), getDisplayName(row), getNumber(row), getType(row));
+	}
+
+	/** @return the row holding the given contact ID, or -1 if it is not in the snapshot */
+	public int getRow(long contactId) {
+		int index = Arrays.binarySearch(_sortedIds, contactId);
+		return index >= 0 ? _sortedIdRows[index] : -1;
+	}
+
+	/** @return the rows, in ascending order, of those contact IDs that are in the snapshot */
+	public int[] getRows(long[] contactIds) {
+		int[] rows = new int[contactIds.length];
+		int found = 0;
+
+		for (long contactId : contactIds) {
+			int row = getRow(contactId);
+			if (row >= 0) rows[found++] = row;
+		}
+
+		int[] result = new int[found];
+		System.arraycopy(rows, 0, result, 0, found);
+		Arrays.sort(result);
+		return result;
+	}
+
+}
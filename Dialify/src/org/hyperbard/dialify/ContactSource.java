@@ -0,0 +1,91 @@
+package org.hyperbard.dialify;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.provider.Contacts;
+import android.provider.Contacts.People;
+import android.provider.Contacts.Phones;
+
+/**
+ * Where contacts are read from: the device's contacts provider or, in debuggable builds, the
+ * {@link SyntheticContactsProvider}, which serves generated contacts for load testing.
+ * <p>
+ * The source is chosen once per process, as the helpers and observers bind to it when they are created. Switch it with
+ * {@link SyntheticContactsReceiver}, which restarts the process.
+ */
+public class ContactSource {
+
+	/** The device's contacts. */
+	public static final ContactSource DEVICE =
+		new ContactSource(Contacts.CONTENT_URI, Phones.CONTENT_URI, People.CONTENT_URI);
+
+	/** Generated contacts; see {@link SyntheticContactsProvider}. */
+	public static final ContactSource SYNTHETIC = new ContactSource(
+			SyntheticContactsProvider.CONTENT_URI,
+			SyntheticContactsProvider.PHONES_URI,
+			SyntheticContactsProvider.PEOPLE_URI
+	);
+
+	private static final String PREFERENCES_NAME = "contact_source";
+	private static final String PREFERENCE_SYNTHETIC = "synthetic";
+
+	//the source this process reads from, chosen on first use
+	private static ContactSource _current;
+
+	private Uri _contentUri;
+	/** Notified of any change to the source's contacts, including photos. */
+	public Uri getContentUri() { return _contentUri; }
+
+	private Uri _phonesUri;
+	/** Phone rows, with the columns of {@link Phones}. */
+	public Uri getPhonesUri() { return _phonesUri; }
+
+	private Uri _peopleUri;
+	/** People, each with a photo at "people/#/photo" as in {@link People}. */
+	public Uri getPeopleUri() { return _peopleUri; }
+
+	private ContactSource(Uri contentUri, Uri phonesUri, Uri peopleUri) {
+		_contentUri = contentUri;
+		_phonesUri = phonesUri;
+		_peopleUri = peopleUri;
+	}
+
+	/** @return the source this process reads contacts from */
+	public static synchronized ContactSource get(Context context) {
+		if (_current == null) {
+			boolean synthetic = isDebuggable(context)
+				&& getPreferences(context).getBoolean(PREFERENCE_SYNTHETIC, false);
+			_current = synthetic ? SYNTHETIC : DEVICE;
+		}
+
+		return _current;
+	}
+
+	/**
+	 * Chooses the source future processes read contacts from. Only debuggable builds can choose the synthetic source.
+	 * @return true if the choice differs from the source this process reads from
+	 */
+	public static boolean set(Context context, boolean synthetic) {
+		synthetic &= isDebuggable(context);
+		getPreferences(context).edit().putBoolean(PREFERENCE_SYNTHETIC, synthetic).commit();
+		return get(context) != (synthetic ? SYNTHETIC : DEVICE);
+	}
+
+	/** @return true if the app was built for debugging, so test tools like synthetic contacts may be used */
+	public static boolean isDebuggable(Context context) {
+		try {
+			ApplicationInfo info = context.getPackageManager().getApplicationInfo(context.getPackageName(), 0);
+			return (info.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+		} catch (PackageManager.NameNotFoundException e) {
+			return false;
+		}
+	}
+
+	private static SharedPreferences getPreferences(Context context) {
+		return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+	}
+
+}
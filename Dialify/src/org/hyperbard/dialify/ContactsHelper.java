@@ -1,19 +1,39 @@
 package org.hyperbard.dialify;
 
-import java.util.List;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import org.hyperbard.dialify.Metrics.Counter;
+import org.hyperbard.dialify.Metrics.Timer;
+import org.hyperbard.dialify.SnapshotCursor.RowSelector;
 
 import org.hyperbard.dialify.R;
 
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.res.Resources;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.Contacts.People;
 import android.provider.Contacts.Phones;
 
 /**
  * Provides access to contact information.
+ * <p>
+ * The phone rows are read from the provider once per process into a shared {@link ContactSnapshot}, which is
+ * served to every caller. When the contacts provider changes the snapshot is compared with it in the background, and
+ * only replaced if a phone row differs. Contacts are read from the process's {@link ContactSource}.
  */
 public class ContactsHelper {
 
@@ -45,6 +65,25 @@ public class ContactsHelper {
 		
 	};
 	
+	/** A page of contacts read by {@link ContactsHelper#readPage(Page, int, int)}, and where the next page starts. */
+	static class Page {
+		final ContactSnapshot snapshot;
+		
+		//the sort key of the last row, unset if the page is empty
+		final String lastName;
+		final int lastType;
+		final String lastLabel;
+		final long lastId;
+		
+		Page(ContactSnapshot snapshot, String lastName, int lastType, String lastLabel, long lastId) {
+			this.snapshot = snapshot;
+			this.lastName = lastName;
+			this.lastType = lastType;
+			this.lastLabel = lastLabel;
+			this.lastId = lastId;
+		}
+	}
+	
 	/** Used to specify the sort order to use when retrieving contacts. */
 	public enum Sort {
 		/** Appropriate for a cursor used to show all contacts */
@@ -59,12 +98,109 @@ public class ContactsHelper {
 		private Sort(String sort) { _sort = sort; }
 	}
 
+	/**
+	 * Notified whenever the snapshot is replaced, or the provider changed while none was loaded. Snapshot cursors don't
+	 * reload when requeried, so observers should create new cursors, off the main thread as that may read the provider.
+	 */
+	public static final Uri SNAPSHOT_URI = Uri.parse("content://org.hyperbard.dialify/contacts");
+	
 	private Context _context;
 	
+	private ContactSource _source;
+	
 	private String[] _contactTypes;
 	
+	//process-wide snapshot of the phone rows, null until loaded or after being invalidated
+	private static ContactSnapshot _snapshot;
+	
+	//set when the provider has changed since the snapshot was read, until it has been compared with the provider
+	private static boolean _stale;
+	
+	//whether a refresh is waiting on the REFRESHER, so a burst of changes queues only one
+	private static boolean _refreshQueued;
+	
+	//search index over the snapshot, built on first use
+	private static ContactIndex _index;
+	private static ContentObserver _snapshotObserver;
+	private static final Object SNAPSHOT_LOCK = new Object();
+	
+	//compares stale snapshots with the provider off the observer's binder thread
+	private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			return new Thread(runnable, "SnapshotRefresher");
+		}
+	});
+	
+	/**
+	 * Marks the snapshot stale whenever anything in the contacts provider changes, and has it compared with the
+	 * provider in the background. Most changes, e.g. a call bumping a person's times contacted, leave every phone row
+	 * as it was, so the snapshot, its index and the cursors showing it are kept.
+	 */
+	private static class SnapshotObserver extends ContentObserver {
+		private ContactsHelper _helper;
+		
+		private final Runnable _refresh = new Runnable() {
+			public void run() {
+				synchronized (SNAPSHOT_LOCK) {
+					_refreshQueued = false;
+				}
+				
+				_helper.refreshSnapshot();
+			}
+		};
+		
+		public SnapshotObserver(ContactsHelper helper) {
+			super(null);
+			_helper = helper;
+		}
+		
+		@Override
+		public void onChange(boolean selfChange) {
+			Metrics.count(Counter.CONTACTS_CHANGED);
+			
+			boolean loaded;
+			boolean queue;
+			synchronized (SNAPSHOT_LOCK) {
+				loaded = _snapshot != null;
+				_stale = loaded;
+				queue = loaded && !_refreshQueued;
+				_refreshQueued |= queue;
+			}
+			
+			if (queue) REFRESHER.execute(_refresh);
+			
+			//nothing to compare, so let whoever shows cursors read from the provider know they should replace them
+			if (!loaded) _helper.notifySnapshotChanged();
+		}
+	}
+	
+	/** Size, in dip, at which photos are shown in notifications (see notification.xml). */
+	private static final int PHOTO_SIZE_DIP = 54;
+	
+	/** Upper bound on the bytes held by decoded photos. */
+	private static final int PHOTO_CACHE_BYTES = 1024 * 1024;
+	
+	private static final PhotoCache _photos = new PhotoCache(PHOTO_CACHE_BYTES);
+	private static ContentObserver _photoObserver;
+	
+	/**
+	 * Marks cached photos as unchecked whenever a person changes, as their photo may have been replaced. The provider
+	 * doesn't say which person changed, so each photo's data is compared with what it was decoded from when it is next
+	 * used; see {@link #getPhotoVersion(Context, long)}.
+	 */
+	private static class PhotoObserver extends ContentObserver {
+		public PhotoObserver() {
+			super(null);
+		}
+		
+		@Override
+		public void onChange(boolean selfChange) {
+			_photos.invalidate();
+		}
+	}
+	
 	//contact query columns
-	private static final String[] PROJECTION_PHONES = new String[] {
+	static final String[] PROJECTION_PHONES = new String[] {
 		Phones._ID,          //0
 		Phones.DISPLAY_NAME, //1
 		Phones.TYPE,         //2
@@ -83,14 +219,189 @@ public class ContactsHelper {
 		+ Phones.TYPE + ","
 		+ "upper(" + Phones.LABEL + ")";
 	
+	//pages are read in Sort.ASC order, with nulls as empty strings and the ID breaking ties so every row has a unique
+	//key to continue from
+	private static final String PAGE_NAME = "ifnull(upper(" + Phones.DISPLAY_NAME + "),'')";
+	private static final String PAGE_LABEL = "ifnull(upper(" + Phones.LABEL + "),'')";
+	
+	private static final String SORT_PAGES =
+		PAGE_NAME + ","
+		+ Phones.TYPE + ","
+		+ PAGE_LABEL + ","
+		+ "Phones._ID";
+	
+	//rows after the given key, i.e. (name, type, label, ID) > (?, ?, ?, ?)
+	private static final String SELECTION_AFTER_PAGE =
+		PAGE_NAME + ">? or (" + PAGE_NAME + "=? and ("
+			+ Phones.TYPE + ">? or (" + Phones.TYPE + "=? and ("
+				+ PAGE_LABEL + ">? or (" + PAGE_LABEL + "=? and Phones._ID>?)))))";
+	
+	/** Most IDs bound in one query, leaving the provider headroom under SQLite's limit of 999 bind arguments. */
+	private static final int MAX_IDS_PER_QUERY = 500;
+	
+	/** Compares the current rows of two phones cursors in {@link Sort#ASC} order, as the provider sorts them. */
+	private static final Comparator<Cursor> PHONES_ASC = new Comparator<Cursor>() {
+		public int compare(Cursor a, Cursor b) {
+			int result = compareUpper(a.getString(1), b.getString(1));
+			if (result == 0) result = a.getInt(2) - b.getInt(2);
+			if (result == 0) result = compareUpper(a.getString(3), b.getString(3));
+			return result;
+		}
+	};
+	
+	private static final Comparator<Cursor> PHONES_DESC = new Comparator<Cursor>() {
+		public int compare(Cursor a, Cursor b) {
+			return PHONES_ASC.compare(b, a);
+		}
+	};
+	
+	/** Compares as SQLite's upper() does, folding only ASCII letters, with nulls first. */
+	private static int compareUpper(String a, String b) {
+		if (a == null || b == null) return (a == null ? 0 : 1) - (b == null ? 0 : 1);
+		
+		int length = Math.min(a.length(), b.length());
+		for (int i = 0; i < length; i++) {
+			char ca = a.charAt(i);
+			char cb = b.charAt(i);
+			if (ca >= 'a' && ca <= 'z') ca -= 'a' - 'A';
+			if (cb >= 'a' && cb <= 'z') cb -= 'a' - 'A';
+			if (ca != cb) return ca - cb;
+		}
+		
+		return a.length() - b.length();
+	}
+	
 	/** A utility for returning a contact's photo **/
 	public static Bitmap getPhoto(Context _context, Contact contact) {
-		Uri contactUri = Uri.parse("content://contacts/people/" + contact.getPersonId());
-		return People.loadContactPhoto(_context, contactUri, R.drawable.icon, null);
+		return getPhoto(_context, contact.getPersonId());
+	}
+	
+	/**
+	 * A utility for returning the photo of the person with the given ID, downsampled to the size shown in
+	 * notifications. Photos are cached until their data changes or memory runs low.
+	 **/
+	public static Bitmap getPhoto(Context _context, long personId) {
+		long start = Metrics.start();
+		
+		Bitmap photo = _photos.get(personId, getPhotoVersion(_context, personId));
+		if (photo != null) {
+			Metrics.count(Counter.PHOTO_CACHE_HITS);
+			Metrics.record(Timer.GET_PHOTO, start);
+			return photo;
+		}
+		
+		Metrics.count(Counter.PHOTO_CACHE_MISSES);
+		
+		byte[] data = readPhoto(_context, personId);
+		photo = (data != null) ? decodePhoto(_context, data) : null;
+		if (photo == null) photo = getPlaceholderPhoto(_context);
+		
+		_photos.put(personId, checksum(data), photo);
+		Metrics.record(Timer.GET_PHOTO, start);
+		return photo;
+	}
+	
+	/**
+	 * The version is a checksum of the photo's data, so it is the same in every process and only changes when the photo
+	 * does. It is read from the provider (without decoding the photo) only if people have changed since it was last
+	 * read, so notifications of people whose photo is the same needn't be posted again.
+	 * @return the version of the person's photo
+	 */
+	public static long getPhotoVersion(Context context, long personId) {
+		synchronized (_photos) {
+			if (_photoObserver == null) {
+				_photoObserver = new PhotoObserver();
+				context.getApplicationContext().getContentResolver()
+					.registerContentObserver(ContactSource.get(context).getPeopleUri(), true, _photoObserver);
+			}
+		}
+		
+		Long checksum = _photos.getChecksum(personId);
+		if (checksum != null) return checksum;
+		
+		long version = checksum(readPhoto(context, personId));
+		_photos.putChecksum(personId, version);
+		return version;
+	}
+	
+	/** @return the person's photo data as stored, or null if they have none or it couldn't be read */
+	private static byte[] readPhoto(Context context, long personId) {
+		Uri contactUri = ContentUris.withAppendedId(ContactSource.get(context).getPeopleUri(), personId);
+		InputStream stream = People.openContactPhotoInputStream(context.getContentResolver(), contactUri);
+		if (stream == null) return null;
+		
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for (int read; (read = stream.read(buffer)) != -1; ) bytes.write(buffer, 0, read);
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			return null;
+		} finally {
+			try { stream.close(); } catch (IOException e) { }
+		}
+	}
+	
+	/** @return a checksum of the photo data, or 0 for none */
+	private static long checksum(byte[] data) {
+		if (data == null) return 0;
+		
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return crc.getValue();
+	}
+	
+	/** Releases memory that can be rebuilt on demand, i.e. cached photos. */
+	public static void onLowMemory() {
+		_photos.clear();
+	}
+	
+	/** @return the photo decoded no larger than needed for a notification, or null if it couldn't be decoded */
+	private static Bitmap decodePhoto(Context context, byte[] data) {
+		//read the dimensions first so we can decode straight to a downsampled bitmap
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = getSampleSize(context, options.outWidth, options.outHeight);
+		return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+	}
+	
+	/** @return the photo shown for people without one */
+	static Bitmap getPlaceholderPhoto(Context context) {
+		synchronized (_photos) {
+			if (_photos.getPlaceholder() == null) {
+				BitmapFactory.Options options = new BitmapFactory.Options();
+				options.inJustDecodeBounds = true;
+				BitmapFactory.decodeResource(context.getResources(), R.drawable.icon, options);
+				
+				options.inJustDecodeBounds = false;
+				options.inSampleSize = getSampleSize(context, options.outWidth, options.outHeight);
+				_photos.setPlaceholder(BitmapFactory.decodeResource(context.getResources(), R.drawable.icon, options));
+			}
+			
+			return _photos.getPlaceholder();
+		}
+	}
+	
+	/** @return the largest power of two sample size that keeps the image at least as big as a notification photo */
+	private static int getSampleSize(Context context, int width, int height) {
+		float density = context.getResources().getDisplayMetrics().density;
+		int target = (int)(PHOTO_SIZE_DIP * density + 0.5f);
+		
+		int sampleSize = 1;
+		while (width / (sampleSize * 2) >= target && height / (sampleSize * 2) >= target) sampleSize *= 2;
+		return sampleSize;
 	}
 	
 	public ContactsHelper(Context context) {
+		this(context, ContactSource.get(context));
+	}
+	
+	public ContactsHelper(Context context, ContactSource source) {
 		_context = context;
+		_source = source;
 
 		//get the list of contact types
 		final Resources resources = context.getResources();
@@ -99,60 +410,427 @@ public class ContactsHelper {
 	
 	/** @return a {@link Contact} representing the row at the current cursor position **/
 	public Contact getContactAtCursor(Cursor cursor) {
-		//determine type
-		int typeId = cursor.getInt(2);
-		String type = (typeId == Phones.TYPE_CUSTOM) ? cursor.getString(3) : _contactTypes[typeId - 1];
+		//snapshot cursors don't need the columns parsed
+		if (cursor instanceof AbstractSnapshotCursor) return ((AbstractSnapshotCursor)cursor).getContact();
 		
 		return new Contact(
 				cursor.getLong(0),   //id
 				cursor.getLong(5),   //person ID
 				cursor.getString(1), //display name
 				cursor.getString(4), //number
-				type
+				getType(cursor.getInt(2), cursor.getString(3))
 		);
 	}
 	
-	/** @return a cursor for all contacts */
+	/** @return the contact type for a type ID, or the custom label for {@link Phones#TYPE_CUSTOM} */
+	private String getType(int typeId, String label) {
+		return (typeId == Phones.TYPE_CUSTOM) ? label : _contactTypes[typeId - 1];
+	}
+	
+	/** @return a cursor for all contacts, served from the snapshot (which is loaded if necessary) */
 	public Cursor getContactsCursor(Sort sort) {
-		return query(null, sort);
+		return newSnapshotCursor(getSnapshot(), null, sort);
+	}
+	
+	/**
+	 * Reads just the first rows with a limited query, so they can be shown while the snapshot loads. The cursor isn't
+	 * notified of changes; replace it with {@link #getContactsCursor(Sort)} once that is available.
+	 * @return a cursor for the first contacts in {@link Sort#ASC} order
+	 */
+	public Cursor getFirstPageCursor(int rows) {
+		//the provider passes the sort order through to SQLite, which is the only way to limit a query on this API level
+		Cursor cursor = query(null, null, Sort.ASC.getSort() + " LIMIT " + rows);
+		return new SnapshotCursor(readSnapshot(cursor), null, Sort.ASC);
+	}
+	
+	/**
+	 * Served from the snapshot if it is loaded and up to date. Otherwise the provider is queried directly, as loading
+	 * every contact to look up a handful (e.g. when recreating notifications at boot) would cost more than it saves.
+	 * @return a cursor for the specified contacts, or all contacts if contactIds is null or empty
+	 */
+	public Cursor getContactsCursor(long[] contactIds, Sort sort) {
+		if (contactIds == null || contactIds.length == 0) return getContactsCursor(sort);
+		
+		ContactSnapshot snapshot;
+		synchronized (SNAPSHOT_LOCK) {
+			snapshot = _stale ? null : _snapshot;
+		}
+		
+		if (snapshot == null) return query(contactIds, sort);
+		
+		final long[] ids = contactIds.clone();
+		return newSnapshotCursor(snapshot, new RowSelector() {
+			public int[] selectRows(ContactSnapshot snapshot) {
+				return snapshot.getRows(ids);
+			}
+		}, sort);
+	}
+	
+	/**
+	 * Matches the filter against the {@link ContactIndex}, without querying the provider.
+	 * @return a cursor, in {@link Sort#ASC} order, for the contacts whose names or numbers match the filter, or all
+	 *         contacts if it is blank
+	 */
+	public Cursor getFilteredContactsCursor(final CharSequence filter) {
+		return newSnapshotCursor(getSnapshot(), new RowSelector() {
+			public int[] selectRows(ContactSnapshot snapshot) {
+				return getIndex(snapshot).search(filter);
+			}
+		}, Sort.ASC);
+	}
+	
+	/**
+	 * Matches dial pad digits against the {@link ContactIndex}'s T9 spelling of names and the digits of numbers.
+	 * @return a cursor, in {@link Sort#ASC} order, for the matching contacts, or all contacts if there are no digits
+	 */
+	public Cursor getDialPadContactsCursor(final CharSequence digits) {
+		return newSnapshotCursor(getSnapshot(), new RowSelector() {
+			public int[] selectRows(ContactSnapshot snapshot) {
+				return getIndex(snapshot).searchDialPad(digits);
+			}
+		}, Sort.ASC);
+	}
+	
+	private Cursor newSnapshotCursor(ContactSnapshot snapshot, RowSelector selector, Sort sort) {
+		return new SnapshotCursor(snapshot, selector, sort);
+	}
+	
+	/** @return the search index over the process-wide snapshot, building it if necessary */
+	public ContactIndex getIndex() {
+		return getIndex(getSnapshot());
+	}
+	
+	/**
+	 * The index is rebuilt whole for each new snapshot rather than updated for the changed rows: its tokens are offsets
+	 * into the snapshot's char buffers, and a reload produces new buffers with every offset moved, so an update would
+	 * rewrite every token anyway. Build it off the main thread after a reload; see {@link Dialify}.
+	 * @return the search index over the given snapshot, building it if necessary
+	 */
+	private ContactIndex getIndex(ContactSnapshot snapshot) {
+		synchronized (SNAPSHOT_LOCK) {
+			if (_index == null || _index.getSnapshot() != snapshot) _index = new ContactIndex(snapshot);
+			return _index;
+		}
+	}
+	
+	/**
+	 * Reads contacts a page at a time rather than all at once, for address books too big to hold in memory.
+	 * @param count the number of contacts, from {@link #countContacts()}, which callers have usually just taken
+	 * @return a cursor, in {@link Sort#ASC} order, for all contacts
+	 */
+	public PagedContactsCursor getPagedContactsCursor(int count) {
+		PagedContactsCursor cursor = new PagedContactsCursor(this, count, _context.getString(R.string.loading_contact));
+		cursor.setNotificationUri(_context.getContentResolver(), _source.getContentUri());
+		return cursor;
 	}
 	
-	/** @return a cursor for the specified contacts, or all contacts if contactIds is null or an empty list */
-	public Cursor getContactsCursor(List<Long> contactIds, Sort sort) {
-		return query(contactIds, sort);
+	/**
+	 * @return a cursor over just the display names of all contacts, in the order of
+	 *         {@link #getPagedContactsCursor(int)}
+	 */
+	public Cursor getNamesCursor() {
+		return _context.getContentResolver().query(
+				_source.getPhonesUri(), new String[] { Phones.DISPLAY_NAME }, null, null, SORT_PAGES);
 	}
 	
-	/** @param contactIds if null, returns all contacts */
-	private Cursor query(List<Long> contactIds, Sort sort) {
-		String selection = null;
-		String[] selectionArgs = null;
+	/** @return the number of phone rows in the provider, without reading them */
+	public int countContacts() {
+		Cursor cursor = _context.getContentResolver().query(
+				_source.getPhonesUri(), new String[] { Phones._ID }, null, null, null);
 		
-		//build up the selection if contact IDs were provided
-		if (contactIds != null && contactIds.size() > 0) {
-			selectionArgs = new String[contactIds.size()];
-			StringBuilder sb = new StringBuilder();
+		try {
+			return cursor.getCount();
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Reads a page of contacts. Pages following a loaded page continue from its last row, so SQLite only has to keep a
+	 * page of rows while sorting; otherwise the page is found by skipping rows, which gets slower the further in it is.
+	 * @param previous the page before the one to read, or null if it isn't loaded
+	 * @param offset the position of the page's first row, used if previous is null
+	 */
+	Page readPage(Page previous, int offset, int rows) {
+		Cursor cursor;
+		if (previous != null && previous.lastName != null) {
+			String name = previous.lastName;
+			String type = String.valueOf(previous.lastType);
+			String label = previous.lastLabel;
 			
-			for (int i = 0; i < contactIds.size(); i++) {
-				long contactId = contactIds.get(i);
-				selectionArgs[i] = String.valueOf(contactId);
-				
-				if (i > 0) {
-					sb.append("or ");
-				}
-				
-				sb.append("Phones._ID=?");
+			cursor = query(
+					SELECTION_AFTER_PAGE,
+					new String[] { name, name, type, type, label, label, String.valueOf(previous.lastId) },
+					SORT_PAGES + " LIMIT " + rows);
+		} else {
+			cursor = query(null, null, SORT_PAGES + " LIMIT " + rows + " OFFSET " + offset);
+		}
+		
+		String lastName = null;
+		int lastType = 0;
+		String lastLabel = null;
+		long lastId = 0;
+		
+		//the key is taken from the raw columns, as the snapshot resolves labels
+		if (cursor.moveToLast()) {
+			lastName = upper(cursor.getString(1));
+			lastType = cursor.getInt(2);
+			lastLabel = upper(cursor.getString(3));
+			lastId = cursor.getLong(0);
+		}
+		
+		return new Page(readSnapshot(cursor), lastName, lastType, lastLabel, lastId);
+	}
+	
+	/** @return the string as SQLite's upper() returns it, folding only ASCII letters, with null as empty */
+	private static String upper(String s) {
+		if (s == null) return "";
+		
+		char[] chars = s.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			if (chars[i] >= 'a' && chars[i] <= 'z') chars[i] -= 'a' - 'A';
+		}
+		
+		return new String(chars);
+	}
+	
+	/** Drops the process-wide snapshot and its index, so they are read again from the provider on next use. */
+	public static void invalidateSnapshot() {
+		synchronized (SNAPSHOT_LOCK) {
+			_snapshot = null;
+			_stale = false;
+			_index = null;
+		}
+	}
+	
+	/**
+	 * @return true if the process-wide snapshot is loaded, so {@link #getSnapshot()} won't have to read every contact
+	 *         (though it may compare a stale one with the provider)
+	 */
+	public boolean isSnapshotLoaded() {
+		synchronized (SNAPSHOT_LOCK) {
+			return _snapshot != null;
+		}
+	}
+	
+	/**
+	 * @return the process-wide snapshot of all phone rows, loading it from the provider if necessary, or first
+	 *         comparing it with the provider if that has changed
+	 */
+	public ContactSnapshot getSnapshot() {
+		refreshSnapshot();
+		
+		synchronized (SNAPSHOT_LOCK) {
+			if (_snapshotObserver == null) {
+				//the observer keeps its own helper on the application context so no activity is leaked
+				Context application = _context.getApplicationContext();
+				_snapshotObserver = new SnapshotObserver(new ContactsHelper(application, _source));
+				application.getContentResolver().registerContentObserver(
+						_source.getContentUri(), true, _snapshotObserver);
 			}
 			
-			selection = sb.toString();
+			if (_snapshot == null) _snapshot = loadSnapshot();
+			return _snapshot;
+		}
+	}
+	
+	/**
+	 * @return a snapshot holding at least the given contacts: the process-wide one if it is loaded and up to date,
+	 *         otherwise one read from the provider for just those contacts
+	 */
+	public ContactSnapshot getSnapshot(long[] contactIds) {
+		synchronized (SNAPSHOT_LOCK) {
+			if (_snapshot != null && !_stale) return _snapshot;
 		}
 		
-		return _context.getContentResolver().query(
-				Phones.CONTENT_URI,
+		return readSnapshot(query(contactIds, Sort.ASC));
+	}
+	
+	/**
+	 * Compares a stale process-wide snapshot with the provider, replacing it and notifying {@link #SNAPSHOT_URI} only
+	 * if a phone row was added, removed or changed. Phone rows carry no version or modification time to query instead,
+	 * so every row is read and compared by value, without decoding its strings.
+	 */
+	private void refreshSnapshot() {
+		synchronized (SNAPSHOT_LOCK) {
+			if (_snapshot == null || !_stale) return;
+			
+			//cleared before reading, so a change made while reading marks it stale again
+			_stale = false;
+			
+			ContactSnapshot refreshed = reloadSnapshot(_snapshot, query(null, Sort.ASC));
+			if (refreshed == _snapshot) {
+				Metrics.count(Counter.CONTACTS_UNCHANGED);
+				return;
+			}
+			
+			_snapshot = refreshed;
+			_index = null;
+		}
+		
+		notifySnapshotChanged();
+	}
+	
+	/** Lets whoever shows snapshot cursors know they should replace them. */
+	private void notifySnapshotChanged() {
+		_context.getContentResolver().notifyChange(SNAPSHOT_URI, null);
+	}
+	
+	private ContactSnapshot loadSnapshot() {
+		return readSnapshot(query(null, Sort.ASC));
+	}
+	
+	/**
+	 * Reads an {@link Sort#ASC} phones cursor into a new snapshot, copying rows that are unchanged from the previous
+	 * snapshot rather than decoding them again, and closes the cursor.
+	 * @return the previous snapshot if every row is unchanged, otherwise the new one
+	 */
+	private ContactSnapshot reloadSnapshot(ContactSnapshot previous, Cursor cursor) {
+		long start = Metrics.start();
+		int count = cursor.getCount();
+		
+		//compare every row before building anything, as usually none has changed
+		CharArrayBuffer buffer = new CharArrayBuffer(64);
+		boolean changed = count != previous.getCount();
+		for (int row = 0; !changed && row < count; row++) {
+			cursor.moveToPosition(row);
+			changed = previous.getId(row) != cursor.getLong(0) || !sameRow(cursor, previous, row, buffer);
+		}
+		
+		if (!changed) {
+			cursor.close();
+			Metrics.record(Timer.SNAPSHOT_READ, start);
+			return previous;
+		}
+		
+		ContactSnapshot snapshot = new ContactSnapshot(count);
+		for (int row = 0; row < count; row++) {
+			cursor.moveToPosition(row);
+			
+			//rows keep their IDs when edited, so look the row up by ID as others may have moved around it
+			int previousRow = previous.getRow(cursor.getLong(0));
+			if (previousRow >= 0 && sameRow(cursor, previous, previousRow, buffer)) {
+				snapshot.add(previous, previousRow);
+			} else {
+				add(snapshot, cursor);
+			}
+		}
+		
+		cursor.close();
+		snapshot.build();
+		
+		Metrics.record(Timer.SNAPSHOT_READ, start);
+		return snapshot;
+	}
+	
+	/** @return true if the cursor's current row holds the same values as the snapshot row, apart from the ID */
+	private static boolean sameRow(Cursor cursor, ContactSnapshot snapshot, int row, CharArrayBuffer buffer) {
+		int typeId = cursor.getInt(2);
+		if (snapshot.getPersonId(row) != cursor.getLong(5) || snapshot.getTypeId(row) != typeId) return false;
+		
+		//labels are only kept for custom types, and are rare enough that allocating them doesn't matter
+		if (typeId == Phones.TYPE_CUSTOM) {
+			String label = cursor.getString(3);
+			if (label == null ? snapshot.getLabel(row) != null : !label.equals(snapshot.getLabel(row))) return false;
+		}
+		
+		cursor.copyStringToBuffer(1, buffer);
+		if (!snapshot.nameEquals(row, buffer.data, buffer.sizeCopied)) return false;
+		
+		cursor.copyStringToBuffer(4, buffer);
+		return snapshot.numberEquals(row, buffer.data, buffer.sizeCopied);
+	}
+	
+	/** Reads every row of an {@link Sort#ASC} phones cursor into a new snapshot and closes the cursor. */
+	private ContactSnapshot readSnapshot(Cursor cursor) {
+		long start = Metrics.start();
+		ContactSnapshot snapshot = new ContactSnapshot(cursor.getCount());
+		
+		if (cursor.getCount() > 0) {
+			cursor.moveToFirst();
+			
+			do {
+				add(snapshot, cursor);
+				cursor.moveToNext();
+			} while (!cursor.isAfterLast());
+		}
+		
+		cursor.close();
+		snapshot.build();
+		
+		Metrics.record(Timer.SNAPSHOT_READ, start);
+		return snapshot;
+	}
+	
+	/** Appends the cursor's current row to the snapshot. */
+	private void add(ContactSnapshot snapshot, Cursor cursor) {
+		int typeId = cursor.getInt(2);
+		
+		snapshot.add(
+				cursor.getLong(0),   //id
+				cursor.getLong(5),   //person ID
+				cursor.getString(1), //display name
+				cursor.getString(4), //number
+				typeId,
+				getType(typeId, cursor.getString(3))
+		);
+	}
+	
+	/**
+	 * Looks contacts up with "IN" lists of at most {@link #MAX_IDS_PER_QUERY} IDs. When more than one query is needed
+	 * their cursors, each sorted by the provider, are merged into one cursor in the requested order.
+	 * @param contactIds if null, returns all contacts
+	 */
+	private Cursor query(long[] contactIds, Sort sort) {
+		if (contactIds == null || contactIds.length == 0) return query(null, null, sort);
+		
+		//sorted and without duplicates, so each chunk covers a distinct range of IDs
+		long[] ids = contactIds.clone();
+		Arrays.sort(ids);
+		int count = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (i == 0 || ids[i] != ids[count - 1]) ids[count++] = ids[i];
+		}
+		
+		int chunks = (count + MAX_IDS_PER_QUERY - 1) / MAX_IDS_PER_QUERY;
+		Cursor[] cursors = new Cursor[chunks];
+		
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			int start = chunk * MAX_IDS_PER_QUERY;
+			int length = Math.min(MAX_IDS_PER_QUERY, count - start);
+			
+			String[] selectionArgs = new String[length];
+			StringBuilder selection = new StringBuilder(length * 2 + 16).append("Phones._ID IN (");
+			
+			for (int i = 0; i < length; i++) {
+				selectionArgs[i] = String.valueOf(ids[start + i]);
+				selection.append(i > 0 ? ",?" : "?");
+			}
+			
+			cursors[chunk] = query(selection.append(')').toString(), selectionArgs, sort);
+		}
+		
+		if (chunks == 1) return cursors[0];
+		return new SortedMergeCursor(cursors, (sort == Sort.DESC) ? PHONES_DESC : PHONES_ASC);
+	}
+	
+	private Cursor query(String selection, String[] selectionArgs, Sort sort) {
+		return query(selection, selectionArgs, sort.getSort());
+	}
+	
+	private Cursor query(String selection, String[] selectionArgs, String sortOrder) {
+		long start = Metrics.start();
+		
+		Cursor cursor = _context.getContentResolver().query(
+				_source.getPhonesUri(),
 				PROJECTION_PHONES,
 				selection,
 				selectionArgs,
-				sort.getSort()
+				sortOrder
 		);
+		
+		Metrics.record(Timer.CONTACTS_QUERY, start);
+		return cursor;
 	}
 	
 }
@@ -0,0 +1,105 @@
+package org.hyperbard.dialify;
+
+import org.hyperbard.dialify.NotificationCleaner.OnCleanedListener;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.database.ContentObserver;
+import android.os.IBinder;
+
+/**
+ * Keeps notifications up to date as contacts are edited, for as long as there are selections.
+ * <p>
+ * The contacts provider only says that something changed, not what, so each burst of changes (debounced by
+ * {@link NotificationCleaner#cleanAfterContactsChanged()}) results in one lookup of just the selected contacts.
+ * Only notifications whose contact actually changed are posted again, and with no selections the service isn't
+ * running at all.
+ */
+public class ContactsWatcherService extends Service {
+
+	//set when started at boot: whether notifications were restored, and so only need checking once boot has settled
+	private static final String EXTRA_RESTORED = "org.hyperbard.dialify.RESTORED";
+	
+	/** How long after boot to check restored notifications against the provider. */
+	private static final long RESTORED_CHECK_DELAY_MILLIS = 60 * 1000;
+
+	private ContentObserver _observer;
+	
+	//the helpers are fetched by each cleanup on the cleaner's thread, so starting at boot doesn't load the selections
+	private DialifyApplication _application;
+	
+	/** Stops the service once a cleanup finds no selections left to watch over; called on the cleaner's thread. */
+	private final OnCleanedListener _stopIfUnused = new OnCleanedListener() {
+		public void onCleaned() {
+			if (_application.getSelectionManager().getNumSelections() == 0) stopSelf();
+		}
+	};
+	
+	/** Starts or stops watching to match the current selections; call whenever they change. */
+	public static void update(Context context, SelectionManager selectionManager) {
+		Intent intent = new Intent(context, ContactsWatcherService.class);
+		
+		if (selectionManager.getNumSelections() > 0) {
+			context.startService(intent);
+		} else {
+			context.stopService(intent);
+		}
+	}
+	
+	/**
+	 * Starts watching at boot, first bringing notifications up to date: straight away if they couldn't be restored,
+	 * otherwise once the rush of boot has passed.
+	 */
+	public static void startAfterBoot(Context context, boolean restored) {
+		Intent intent = new Intent(context, ContactsWatcherService.class);
+		intent.putExtra(EXTRA_RESTORED, restored);
+		context.startService(intent);
+	}
+	
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		
+		//shared with the rest of the process, so selections made in Dialify are seen straight away
+		_application = DialifyApplication.get(this);
+		
+		_observer = new ContentObserver(null) {
+			@Override
+			public void onChange(boolean selfChange) {
+				//selections may have been removed since the service was last told, which the pass finds out
+				new NotificationCleaner(_application).cleanAfterContactsChanged(_stopIfUnused);
+			}
+		};
+		
+		getContentResolver().registerContentObserver(ContactSource.get(this).getContentUri(), true, _observer);
+	}
+	
+	@Override
+	public void onStart(Intent intent, int startId) {
+		super.onStart(intent, startId);
+		
+		//started by update(), which only starts the service while there are selections, or at boot
+		if (intent != null && intent.hasExtra(EXTRA_RESTORED)) {
+			NotificationCleaner cleaner = new NotificationCleaner(_application);
+			
+			if (intent.getBooleanExtra(EXTRA_RESTORED, false)) {
+				cleaner.cleanLater(RESTORED_CHECK_DELAY_MILLIS, _stopIfUnused);
+			} else {
+				cleaner.clean(_stopIfUnused);
+			}
+		}
+	}
+	
+	@Override
+	public void onDestroy() {
+		getContentResolver().unregisterContentObserver(_observer);
+		super.onDestroy();
+	}
+	
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+	
+}
@@ -1,6 +1,10 @@
 package org.hyperbard.dialify;
 
 import java.util.HashMap;
+import java.util.List;
+
+import org.hyperbard.dialify.Metrics.Timer;
+import org.hyperbard.dialify.NotificationHelper.NotificationType;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -21,12 +25,20 @@ public class DatabaseHelper {
 		public static final String COLUMN_ID = "id";
 		public static final String COLUMN_NOTIFICATION_ID = "notification_id";
 		public static final String COLUMN_CONTACT_ID = "contact_id";
+		/** The {@link NotificationType#getCode() code} of the selection's notification type. */
 		public static final String COLUMN_NOTIFICATION_TYPE = "type";
+		
+		/**
+		 * Unique across contact ID and notification type; also serves lookups by contact ID. It can't serve the
+		 * selections' load order (contact ID, then type descending) as the directions differ, but that sort covers at
+		 * most {@link SelectionManager#MAX_SELECTIONS_LIMIT} rows, once per process.
+		 */
+		public static final String INDEX_CONTACT_TYPE = "selections_contact_type";
 	}
 	
 	//database identification
 	private static final String DATABASE_NAME = "dialify.db";
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 2;
 
 	//create projection maps
 	private static HashMap<String, HashMap<String, String>> PROJECTION_MAPS;
@@ -43,8 +55,50 @@ public class DatabaseHelper {
 		PROJECTION_MAPS.put(Selections.TABLE_NAME, selectionsMap);
 	}
 	
+	/**
+	 * A single insert, replace or delete to run as part of a batch passed to {@link DatabaseHelper#apply(List)}.
+	 */
+	public static class Operation {
+		private static final int INSERT = 0;
+		private static final int REPLACE = 1;
+		private static final int DELETE = 2;
+		
+		private int _kind;
+		private String _tableName;
+		private ContentValues _values;
+		private String _whereClause;
+		private String[] _whereArgs;
+		
+		private Operation(int kind, String tableName, ContentValues values, String whereClause, String[] whereArgs) {
+			_kind = kind;
+			_tableName = tableName;
+			_values = values;
+			_whereClause = whereClause;
+			_whereArgs = whereArgs;
+		}
+		
+		/** @see DatabaseHelper#insert(String, ContentValues) */
+		public static Operation insert(String tableName, ContentValues values) {
+			return new Operation(INSERT, tableName, values, null, null);
+		}
+		
+		/** @see DatabaseHelper#replace(String, ContentValues) */
+		public static Operation replace(String tableName, ContentValues values) {
+			return new Operation(REPLACE, tableName, values, null, null);
+		}
+		
+		/** @see DatabaseHelper#delete(String, String, String[]) */
+		public static Operation delete(String tableName, String whereClause, String[] whereArgs) {
+			return new Operation(DELETE, tableName, null, whereClause, whereArgs);
+		}
+	}
+	
 	private OpenHelper _openHelper;
 	
+	//compiled insert statements by table, only valid for the database they were compiled against
+	private HashMap<String, InsertHelper> _insertHelpers = new HashMap<String, InsertHelper>();
+	private SQLiteDatabase _insertDatabase;
+	
 	private static class OpenHelper extends SQLiteOpenHelper {
 
 		public OpenHelper(Context context) {
@@ -53,18 +107,65 @@ public class DatabaseHelper {
 
 		@Override
 		public void onCreate(SQLiteDatabase db) {
+			createSelections(db, Selections.TABLE_NAME);
+			createSelectionsIndex(db);
+		}
+
+		/** Runs within the transaction opened by {@link SQLiteOpenHelper}, so a failed step leaves the old schema. */
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			if (oldVersion < 2) upgradeSelectionsToVersion2(db);
+		}
+		
+		private static void createSelections(SQLiteDatabase db, String tableName) {
 			db.execSQL(
-				"CREATE TABLE " + Selections.TABLE_NAME + " ("
+				"CREATE TABLE " + tableName + " ("
 					+ Selections.COLUMN_ID + " INTEGER PRIMARY KEY,"
 					+ Selections.COLUMN_NOTIFICATION_ID + " INTEGER,"
 					+ Selections.COLUMN_CONTACT_ID + " INTEGER,"
-					+ Selections.COLUMN_NOTIFICATION_TYPE + " TEXT"
+					+ Selections.COLUMN_NOTIFICATION_TYPE + " INTEGER"
 				+ ");");
 		}
-
-		@Override
-		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			//nothing to upgrade at the moment
+		
+		private static void createSelectionsIndex(SQLiteDatabase db) {
+			db.execSQL(
+				"CREATE UNIQUE INDEX " + Selections.INDEX_CONTACT_TYPE + " ON " + Selections.TABLE_NAME + " ("
+					+ Selections.COLUMN_CONTACT_ID + ","
+					+ Selections.COLUMN_NOTIFICATION_TYPE
+				+ ");");
+		}
+		
+		/**
+		 * Version 1 stored the notification type as its enum name and allowed duplicate selections. Copies each
+		 * contact's first selection of each type into a table storing type codes, then swaps it in and indexes it.
+		 */
+		private static void upgradeSelectionsToVersion2(SQLiteDatabase db) {
+			String newTable = Selections.TABLE_NAME + "_v2";
+			createSelections(db, newTable);
+			
+			StringBuilder code = new StringBuilder("CASE " + Selections.COLUMN_NOTIFICATION_TYPE);
+			for (NotificationType type : NotificationType.values()) {
+				code.append(" WHEN '").append(type.name()).append("' THEN ").append(type.getCode());
+			}
+			code.append(" END");
+			
+			String columns =
+				Selections.COLUMN_ID + ","
+				+ Selections.COLUMN_NOTIFICATION_ID + ","
+				+ Selections.COLUMN_CONTACT_ID + ",";
+			
+			db.execSQL(
+				"INSERT INTO " + newTable + " (" + columns + Selections.COLUMN_NOTIFICATION_TYPE + ")"
+				+ " SELECT " + columns + code
+				+ " FROM " + Selections.TABLE_NAME
+				+ " WHERE " + Selections.COLUMN_ID + " IN ("
+					+ "SELECT MIN(" + Selections.COLUMN_ID + ") FROM " + Selections.TABLE_NAME
+					+ " GROUP BY " + Selections.COLUMN_CONTACT_ID + "," + Selections.COLUMN_NOTIFICATION_TYPE
+				+ ") AND " + code + " IS NOT NULL;");
+			
+			db.execSQL("DROP TABLE " + Selections.TABLE_NAME + ";");
+			db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + Selections.TABLE_NAME + ";");
+			createSelectionsIndex(db);
 		}
 	}
 	
@@ -90,28 +191,38 @@ public class DatabaseHelper {
 		query.setTables(tableName);
 		query.setProjectionMap(PROJECTION_MAPS.get(tableName));
 		
+		long start = Metrics.start();
 		SQLiteDatabase db = _openHelper.getReadableDatabase();
-		return query.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+		Cursor cursor = query.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+		
+		Metrics.record(Timer.DATABASE_QUERY, start);
+		return cursor;
 	}
 
 	/**
 	 * Inserts a new row into the specified table.
 	 * @return the row ID of the newly inserted row, or -1 if an error occurred
 	 */
-	public long insert(String tableName, ContentValues values) {
+	public synchronized long insert(String tableName, ContentValues values) {
+		long start = Metrics.start();
 		SQLiteDatabase db = _openHelper.getWritableDatabase();
-		InsertHelper insert = new InsertHelper(db, tableName);
-		return insert.insert(values);
+		long id = getInsertHelper(db, tableName).insert(values);
+		
+		Metrics.record(Timer.DATABASE_INSERT, start);
+		return id;
 	}
 	
 	/**
 	 * Inserts a new row or replaces a conflicting row (i.e. if an existing primary key is provided).
 	 * @return the row ID of the newly inserted row, or -1 if an error occurred
 	 */
-	public long replace(String tableName, ContentValues values) {
+	public synchronized long replace(String tableName, ContentValues values) {
+		long start = Metrics.start();
 		SQLiteDatabase db = _openHelper.getWritableDatabase();
-		InsertHelper insert = new InsertHelper(db, tableName);
-		return insert.replace(values);		
+		long id = getInsertHelper(db, tableName).replace(values);
+		
+		Metrics.record(Timer.DATABASE_REPLACE, start);
+		return id;
 	}
 	
 	/**
@@ -121,9 +232,80 @@ public class DatabaseHelper {
 	 * @return the number of rows affected if a whereClause is passed in, 0 otherwise. To remove all rows and get a
 	 *         count pass "1" as the whereClause.
 	 */
-	public long delete(String tableName, String whereClause, String[] whereArgs) {
+	public synchronized long delete(String tableName, String whereClause, String[] whereArgs) {
+		long start = Metrics.start();
+		SQLiteDatabase db = _openHelper.getWritableDatabase();
+		long count = db.delete(tableName, whereClause, whereArgs);
+		
+		Metrics.record(Timer.DATABASE_DELETE, start);
+		return count;
+	}
+	
+	/**
+	 * Runs the operations in order within a single transaction, so they are committed (and synced) together or not at
+	 * all. If an insert or replace fails the transaction is rolled back and the remaining operations are not run.
+	 * @return for each operation, the row ID for an insert or replace (-1 if it failed) or the number of rows affected
+	 *         by a delete, as returned by the matching single-operation method; operations that were not run report -1
+	 */
+	public synchronized long[] apply(List<Operation> operations) {
+		long start = Metrics.start();
+		long[] results = new long[operations.size()];
+		for (int i = 0; i < results.length; i++) results[i] = -1;
+		
 		SQLiteDatabase db = _openHelper.getWritableDatabase();
-		return db.delete(tableName, whereClause, whereArgs);
+		db.beginTransaction();
+		
+		try {
+			for (int i = 0; i < results.length; i++) {
+				Operation operation = operations.get(i);
+				
+				switch (operation._kind) {
+				case Operation.INSERT:
+					results[i] = getInsertHelper(db, operation._tableName).insert(operation._values);
+					break;
+				case Operation.REPLACE:
+					results[i] = getInsertHelper(db, operation._tableName).replace(operation._values);
+					break;
+				case Operation.DELETE:
+					results[i] = db.delete(operation._tableName, operation._whereClause, operation._whereArgs);
+					break;
+				}
+				
+				if (results[i] == -1) return results;
+			}
+			
+			db.setTransactionSuccessful();
+			return results;
+		} finally {
+			db.endTransaction();
+			Metrics.record(Timer.DATABASE_APPLY, start);
+		}
+	}
+	
+	/** @return true if every operation in a batch succeeded, given the results from {@link #apply(List)} */
+	public static boolean succeeded(long[] results) {
+		for (long result : results) {
+			if (result == -1) return false;
+		}
+		
+		return true;
+	}
+	
+	/** @return the cached insert statement for the table, compiling it if the database has been reopened */
+	private InsertHelper getInsertHelper(SQLiteDatabase db, String tableName) {
+		if (db != _insertDatabase) {
+			for (InsertHelper insert : _insertHelpers.values()) insert.close();
+			_insertHelpers.clear();
+			_insertDatabase = db;
+		}
+		
+		InsertHelper insert = _insertHelpers.get(tableName);
+		if (insert == null) {
+			insert = new InsertHelper(db, tableName);
+			_insertHelpers.put(tableName, insert);
+		}
+		
+		return insert;
 	}
 	
 }
@@ -0,0 +1,87 @@
+package org.hyperbard.dialify;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import org.hyperbard.dialify.R;
+
+/**
+ * Shows the {@link Metrics} report, saves it to a private file, and sends it with whichever app the user chooses, e.g.
+ * to attach it to a bug report.
+ */
+public class DiagnosticsActivity extends Activity {
+
+	//menu items
+	private static final int MENU_REFRESH = 0;
+	private static final int MENU_SAVE = 1;
+	private static final int MENU_RESET = 2;
+	private static final int MENU_SEND = 3;
+	
+	private TextView _reportView;
+	
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.diagnostics);
+		_reportView = (TextView)findViewById(R.id.diagnostics_report);
+	}
+	
+	@Override
+	protected void onResume() {
+		super.onResume();
+		refresh();
+	}
+	
+	private void refresh() {
+		_reportView.setText(Metrics.format());
+	}
+	
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		menu.add(0, MENU_REFRESH, 0, R.string.diagnostics_refresh).setIcon(android.R.drawable.ic_menu_rotate);
+		menu.add(0, MENU_SAVE, 0, R.string.diagnostics_save).setIcon(android.R.drawable.ic_menu_save);
+		menu.add(0, MENU_SEND, 0, R.string.diagnostics_send).setIcon(android.R.drawable.ic_menu_send);
+		menu.add(0, MENU_RESET, 0, R.string.diagnostics_reset).setIcon(android.R.drawable.ic_menu_delete);
+		return true;
+	}
+	
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+		case MENU_REFRESH:
+			refresh();
+			return true;
+		case MENU_SAVE:
+			try {
+				File file = Metrics.dump(this);
+				Toast.makeText(this, getString(R.string.diagnostics_saved, file.getPath()), Toast.LENGTH_LONG).show();
+			} catch (IOException e) {
+				Toast.makeText(this, R.string.diagnostics_not_saved, Toast.LENGTH_LONG).show();
+			}
+			return true;
+		case MENU_SEND:
+			//sent as text, as the saved file is private to the app
+			Intent send = new Intent(Intent.ACTION_SEND);
+			send.setType("text/plain");
+			send.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.diagnostics));
+			send.putExtra(Intent.EXTRA_TEXT, Metrics.formatWithTime());
+			startActivity(Intent.createChooser(send, getString(R.string.diagnostics_send)));
+			return true;
+		case MENU_RESET:
+			Metrics.reset();
+			refresh();
+			return true;
+		}
+		
+		return false;
+	}
+	
+}
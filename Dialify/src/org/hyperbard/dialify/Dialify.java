@@ -11,13 +11,21 @@ import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ListActivity;
 import android.content.DialogInterface;
+import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.InputType;
+import android.text.TextWatcher;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
-import android.widget.CheckedTextView;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.AdapterView.OnItemClickListener;
 
@@ -30,6 +38,10 @@ public class Dialify extends ListActivity {
 
 	//menus
 	private static final int MENU_HELP = 0;
+	private static final int MENU_DIAL_PAD = 1;
+	private static final int MENU_LIMIT = 2;
+	private static final int MENU_DIAGNOSTICS = 3;
+	private static final int MENU_BUNDLE = 4;
 	
 	//dialogs
 	private static final int DIALOG_HELP = 0;
@@ -37,63 +49,421 @@ public class Dialify extends ListActivity {
 	private static final int DIALOG_TOO_MANY = 2;
 	private static final int DIALOG_AT_MAX = 3;
 	private static final int DIALOG_SELECT_NOTIFICATION_TYPE = 4;
+	private static final int DIALOG_LIMIT = 5;
+	
+	//contacts shown while the rest are loading; enough to fill the screen
+	private static final int FIRST_PAGE_ROWS = 20;
+	
+	//address books with at least this many phone rows are paged rather than held in memory while browsing
+	private static final int PAGED_CONTACTS = 5000;
 
 	private SelectionManager _selectionManager;
 	private NotificationHelper _notificationHelper;
 	private ContactCursorAdapter _contactAdapter;
 	
-	//we need to keep track of these so they're available to the notification type selection dialog's onClick listener
-	private CheckedTextView _selectedContactNameView;
+	//we need to keep track of this so it's available to the notification type selection dialog's onClick listener
 	private Contact _selectedContact;
 	
 	private Cursor _contactsCursor;
 	
 	private ContactsHelper _contactsHelper;
 	
+	private EditText _searchView;
+	
+	//null once contacts have loaded
+	private LoadContactsTask _loadContactsTask;
+	
+	//notified when the contacts change, as the cursors shown don't reload themselves; null until contacts have loaded
+	private ContentObserver _contactsObserver;
+	
+	//null unless a reload is running
+	private ReloadContactsTask _reloadContactsTask;
+	
+	//whether the contacts changed while a reload was running or the activity was stopped, so another is needed
+	private boolean _reloadPending;
+	
+	//null unless a search is running
+	private FilterContactsTask _filterContactsTask;
+	
+	//whether the search changed while one was running, so another is needed
+	private boolean _filterPending;
+	
+	//false while stopped, when reloads wait until the activity is shown again
+	private boolean _started;
+	
+	//whether contacts are shown with a PagedContactsCursor
+	private boolean _paged;
+	
+	//whether the search box takes dial pad digits (matched against T9 names and numbers) or text
+	private boolean _dialPad;
+	
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
+		StartupTrace.start();
 		super.onCreate(savedInstanceState);
+		setContentView(R.layout.main);
 		
-		_selectionManager = new SelectionManager(this);
-		_notificationHelper = new NotificationHelper(this);
-		_contactsHelper = new ContactsHelper(this);
+		DialifyApplication application = DialifyApplication.get(this);
+		_selectionManager = application.getSelectionManager();
+		_notificationHelper = application.getNotificationHelper();
+		_contactsHelper = application.getContactsHelper();
 		
 		cleanNotifications();
 		
-		_contactsCursor = _contactsHelper.getContactsCursor(Sort.ASC);
-		startManagingCursor(_contactsCursor);
-
-		//see if they have contacts
-		if (_contactsCursor.getCount() == 0) {
-			showDialog(DIALOG_NO_CONTACTS);
-			return;
-		}
-
-		//create adapter to display contacts
-		_contactAdapter = new ContactCursorAdapter(this, R.layout.contact, _contactsCursor, _selectionManager);
-		setListAdapter(_contactAdapter);
-		
 		// create the listener that is invoked when the user clicks a contact
 		OnItemClickListener listener = new OnItemClickListener() {
 			public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-				_selectedContact = _contactsHelper.getContactAtCursor(_contactsCursor);
-				
-				//warn the user if they have already selected the maximum allowed and are clicking an unselected contact
-				boolean notSelected = _selectionManager.getNumSelectionsForContact(_selectedContact.getId()) == 0;
-				boolean atMax = _selectionManager.getNumSelections() == SelectionManager.MAX_SELECTIONS;
-				
-				if (notSelected && atMax) {
-					showDialog(DIALOG_AT_MAX);
-					return;
-				}
-				
-				_selectedContactNameView = (CheckedTextView)view.findViewById(R.id.contact_name);
-				showDialog(DIALOG_SELECT_NOTIFICATION_TYPE);
+				selectContact(position);
 			}
 		};
 
 		ListView listView = getListView();
 		listView.setOnItemClickListener(listener);
+		
+		//narrow the list as the user types
+		_searchView = (EditText)findViewById(R.id.search);
+		_searchView.addTextChangedListener(new TextWatcher() {
+			public void afterTextChanged(Editable s) {
+				filterContacts(s);
+			}
+			
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) { }
+			public void onTextChanged(CharSequence s, int start, int before, int count) { }
+		});
+		
+		//pressing enter picks the top match, as the stock dialer does
+		_searchView.setOnKeyListener(new View.OnKeyListener() {
+			public boolean onKey(View v, int keyCode, KeyEvent event) {
+				if (event.getAction() != KeyEvent.ACTION_DOWN || keyCode != KeyEvent.KEYCODE_ENTER) return false;
+				if (_contactAdapter != null && _contactAdapter.getCount() > 0) selectContact(0);
+				return true;
+			}
+		});
+		
+		//searching needs every contact, so wait for them to load
+		_searchView.setEnabled(false);
+		
+		_loadContactsTask = new LoadContactsTask();
+		_loadContactsTask.execute();
+		StartupTrace.mark("onCreate");
+	}
+	
+	@Override
+	protected void onStart() {
+		super.onStart();
+		_started = true;
+		if (_reloadPending) reloadContacts();
+	}
+	
+	@Override
+	protected void onStop() {
+		super.onStop();
+		_started = false;
+	}
+	
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if (_loadContactsTask != null) _loadContactsTask.cancel(false);
+		if (_reloadContactsTask != null) _reloadContactsTask.cancel(false);
+		if (_filterContactsTask != null) _filterContactsTask.cancel(false);
+		if (_contactsObserver != null) getContentResolver().unregisterContentObserver(_contactsObserver);
+	}
+	
+	/**
+	 * Loads contacts off the main thread so the window shows straight away. A first page is read with a small query
+	 * and shown while the rest load.
+	 */
+	private class LoadContactsTask extends AsyncTask<Void, Cursor, Cursor> {
+		
+		@Override
+		protected Cursor doInBackground(Void... params) {
+			//no point in a first page if the contacts are already loaded, e.g. the activity was recreated
+			if (!_contactsHelper.isSnapshotLoaded()) {
+				//reads its first window when the list first binds a row, so there is no need for a separate first page
+				int count = _contactsHelper.countContacts();
+				if (count >= PAGED_CONTACTS) {
+					_paged = true;
+					
+					//read the first window here rather than show placeholders when the list binds its first row
+					PagedContactsCursor cursor = _contactsHelper.getPagedContactsCursor(count);
+					cursor.readWindowAt(0);
+					StartupTrace.mark("first page read");
+					return cursor;
+				}
+				
+				Cursor firstPage = _contactsHelper.getFirstPageCursor(FIRST_PAGE_ROWS);
+				StartupTrace.mark("first page read");
+				publishProgress(firstPage);
+			}
+			
+			Cursor cursor = _contactsHelper.getContactsCursor(Sort.ASC);
+			cursor.getCount();
+			StartupTrace.mark("all contacts read");
+			
+			return cursor;
+		}
+		
+		@Override
+		protected void onProgressUpdate(Cursor... firstPage) {
+			if (isCancelled() || firstPage[0].getCount() == 0) {
+				firstPage[0].close();
+				return;
+			}
+			
+			showContacts(firstPage[0]);
+			StartupTrace.mark("first page shown");
+		}
+		
+		@Override
+		protected void onPostExecute(Cursor cursor) {
+			_loadContactsTask = null;
+			
+			if (isCancelled()) {
+				if (cursor != null) cursor.close();
+				return;
+			}
+			
+			//see if they have contacts
+			if (cursor.getCount() == 0) {
+				cursor.close();
+				findViewById(android.R.id.empty).setVisibility(View.GONE);
+				showDialog(DIALOG_NO_CONTACTS);
+				return;
+			}
+			
+			showContacts(cursor);
+			_searchView.setEnabled(true);
+			watchContacts();
+			StartupTrace.mark("all contacts shown");
+			
+			//apply any search text restored with the activity's state while the contacts were loading
+			if (_searchView.getText().length() > 0) filterContacts(_searchView.getText());
+			
+			//build the search index in the background so the first keystroke doesn't have to wait for it; when paging,
+			//only once the user shows they want to search, as the index needs every contact in memory
+			if (!_paged) {
+				buildIndex();
+			} else {
+				_searchView.setOnFocusChangeListener(new View.OnFocusChangeListener() {
+					public void onFocusChange(View v, boolean hasFocus) {
+						if (!hasFocus) return;
+						_searchView.setOnFocusChangeListener(null);
+						buildIndex();
+					}
+				});
+			}
+		}
+	}
+	
+	/** Reloads the contacts whenever they change. */
+	private void watchContacts() {
+		_contactsObserver = new ContentObserver(new Handler()) {
+			@Override
+			public void onChange(boolean selfChange) {
+				reloadContacts();
+			}
+		};
+		
+		//notified once the snapshot has been replaced, so a reload can't pick up the stale one
+		getContentResolver().registerContentObserver(ContactsHelper.SNAPSHOT_URI, false, _contactsObserver);
+		
+		//paged cursors read the provider directly, so there may be no snapshot to invalidate
+		if (_paged) {
+			getContentResolver().registerContentObserver(
+					ContactSource.get(this).getContentUri(), true, _contactsObserver);
+		}
+	}
+	
+	/**
+	 * Replaces the contacts shown with a cursor over the current contacts, created in the background. Changes arriving
+	 * while a reload runs, or while the activity is stopped, are covered by one more reload afterwards.
+	 */
+	private void reloadContacts() {
+		if (!_started || _reloadContactsTask != null) {
+			_reloadPending = true;
+			return;
+		}
+		
+		_reloadPending = false;
+		_reloadContactsTask = new ReloadContactsTask(_searchView.getText().toString(), _dialPad);
+		_reloadContactsTask.execute();
+	}
+	
+	/** Creates a cursor over the current contacts, matching the search as it was when the reload started. */
+	private class ReloadContactsTask extends AsyncTask<Void, Void, Cursor> {
+		
+		private String _filter;
+		private boolean _filterDialPad;
+		
+		public ReloadContactsTask(String filter, boolean dialPad) {
+			_filter = filter;
+			_filterDialPad = dialPad;
+		}
+		
+		@Override
+		protected Cursor doInBackground(Void... params) {
+			Cursor cursor;
+			if (_filter.length() > 0 || _paged) {
+				cursor = queryContacts(_filter, _filterDialPad);
+			} else {
+				cursor = _contactsHelper.getContactsCursor(Sort.ASC);
+				
+				//the index is rebuilt for each snapshot, so do it here rather than on the first keystroke
+				_contactsHelper.getIndex();
+			}
+			
+			cursor.getCount();
+			return cursor;
+		}
+		
+		@Override
+		protected void onPostExecute(Cursor cursor) {
+			_reloadContactsTask = null;
+			
+			//the user changed the search while this ran, so the cursor no longer matches it
+			boolean stale = !_filter.equals(_searchView.getText().toString()) || _filterDialPad != _dialPad;
+			
+			if (isCancelled() || stale) {
+				cursor.close();
+				if (isCancelled()) return;
+				_reloadPending = true;
+			} else {
+				showContacts(cursor);
+			}
+			
+			if (_reloadPending) reloadContacts();
+		}
+	}
+	
+	private void buildIndex() {
+		new Thread(new Runnable() {
+			public void run() {
+				_contactsHelper.getIndex();
+			}
+		}).start();
+	}
+	
+	/** Shows the contacts, replacing whatever was shown before. */
+	private void showContacts(Cursor cursor) {
+		startManagingCursor(cursor);
+		
+		if (_contactAdapter == null) {
+			//create adapter to display contacts
+			//not requeried on changes, as that would reload every contact on this thread; see reloadContacts()
+			_contactAdapter = new ContactCursorAdapter(this, R.layout.contact, cursor, false, _selectionManager);
+			setListAdapter(_contactAdapter);
+			
+			//posted runnables run once the list has been laid out and drawn
+			getListView().post(new Runnable() {
+				public void run() {
+					StartupTrace.mark("first row drawn");
+				}
+			});
+		} else {
+			//closes the previous cursor
+			stopManagingCursor(_contactsCursor);
+			_contactAdapter.changeCursor(cursor);
+		}
+		
+		_contactsCursor = cursor;
+	}
+	
+	/** Shows the notification type selection dialog for the contact at the given list position. */
+	private void selectContact(int position) {
+		Cursor cursor = (Cursor)_contactAdapter.getItem(position);
+		
+		//the row is a placeholder until its window has been read
+		if (cursor instanceof PagedContactsCursor && !((PagedContactsCursor)cursor).isLoaded()) return;
+		
+		_selectedContact = _contactsHelper.getContactAtCursor(cursor);
+		
+		//warn the user if they have already selected the maximum allowed and are clicking an unselected contact
+		boolean notSelected = _selectionManager.getNumSelectionsForContact(_selectedContact.getId()) == 0;
+		boolean atMax = _selectionManager.getNumSelections() >= _selectionManager.getMaxSelections();
+		
+		if (notSelected && atMax) {
+			showDialog(DIALOG_AT_MAX);
+			return;
+		}
+		
+		showDialog(DIALOG_SELECT_NOTIFICATION_TYPE);
+	}
+	
+	/**
+	 * Replaces the list's cursor with one over the contacts matching the filter, searched in the background. Keystrokes
+	 * arriving while a search runs are covered by one more search afterwards. Does nothing until every contact has
+	 * loaded; the filter is applied then.
+	 */
+	private void filterContacts(CharSequence filter) {
+		if (_loadContactsTask != null || _contactAdapter == null) return;
+		
+		if (_filterContactsTask != null) {
+			_filterPending = true;
+			return;
+		}
+		
+		_filterPending = false;
+		_filterContactsTask = new FilterContactsTask(filter.toString(), _dialPad);
+		_filterContactsTask.execute();
+	}
+	
+	/** Searches the contacts, which may have to wait for the snapshot or its index to be read or built. */
+	private class FilterContactsTask extends AsyncTask<Void, Void, Cursor> {
+		
+		private String _filter;
+		private boolean _filterDialPad;
+		
+		public FilterContactsTask(String filter, boolean dialPad) {
+			_filter = filter;
+			_filterDialPad = dialPad;
+		}
+		
+		@Override
+		protected Cursor doInBackground(Void... params) {
+			Cursor cursor = queryContacts(_filter, _filterDialPad);
+			cursor.getCount();
+			return cursor;
+		}
+		
+		@Override
+		protected void onPostExecute(Cursor cursor) {
+			_filterContactsTask = null;
+			
+			if (isCancelled()) {
+				if (cursor != null) cursor.close();
+				return;
+			}
+			
+			//the user changed the search while this ran, so the cursor no longer matches it
+			boolean stale = !_filter.equals(_searchView.getText().toString()) || _filterDialPad != _dialPad;
+			
+			if (stale) {
+				cursor.close();
+				_filterPending = true;
+			} else {
+				showContacts(cursor);
+			}
+			
+			if (_filterPending) filterContacts(_searchView.getText());
+		}
+	}
+	
+	/**
+	 * Queries the provider when paging and the filter is blank, as the snapshot the index searches would hold every
+	 * contact.
+	 * @return a cursor over the contacts matching the filter, as dial pad digits or text
+	 */
+	private Cursor queryContacts(CharSequence filter, boolean dialPad) {
+		if (_paged && filter.toString().trim().length() == 0) {
+			PagedContactsCursor cursor = _contactsHelper.getPagedContactsCursor(_contactsHelper.countContacts());
+			cursor.readWindowAt(0);
+			return cursor;
+		}
+		
+		return dialPad
+			? _contactsHelper.getDialPadContactsCursor(filter)
+			: _contactsHelper.getFilteredContactsCursor(filter);
 	}
 	
 	@Override
@@ -104,12 +474,39 @@ public class Dialify extends ListActivity {
 	
 	private void cleanNotifications() {
 		NotificationCleaner cleaner = new NotificationCleaner(_contactsHelper, _selectionManager, _notificationHelper);
-		cleaner.clean();
+		
+		//the cleaner drops selections for deleted contacts, so refresh the check marks once it's done
+		cleaner.clean(new NotificationCleaner.OnCleanedListener() {
+			public void onCleaned() {
+				runOnUiThread(new Runnable() {
+					public void run() {
+						if (_contactAdapter != null) _contactAdapter.notifyDataSetChanged();
+						
+						//watch for contact edits only while there are selections to keep up to date
+						ContactsWatcherService.update(Dialify.this, _selectionManager);
+					}
+				});
+			}
+		});
 	}
 	
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
+		menu.add(0, MENU_DIAL_PAD, 0, R.string.dial_pad).setIcon(android.R.drawable.ic_menu_call);
+		menu.add(0, MENU_LIMIT, 0, R.string.limit).setIcon(android.R.drawable.ic_menu_preferences);
+		menu.add(0, MENU_BUNDLE, 0, R.string.bundle).setIcon(android.R.drawable.ic_menu_agenda);
 		menu.add(0, MENU_HELP, 0, R.string.help).setIcon(android.R.drawable.ic_menu_help);
+		menu.add(0, MENU_DIAGNOSTICS, 0, R.string.diagnostics).setIcon(android.R.drawable.ic_menu_info_details);
+		return true;
+	}
+	
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		//there is nothing to search if the user has no contacts or they haven't loaded yet
+		menu.findItem(MENU_DIAL_PAD)
+			.setVisible(_searchView.isEnabled())
+			.setTitle(_dialPad ? R.string.keyboard : R.string.dial_pad);
+		menu.findItem(MENU_BUNDLE).setTitle(_notificationHelper.isBundled() ? R.string.unbundle : R.string.bundle);
 		return true;
 	}
 
@@ -119,6 +516,23 @@ public class Dialify extends ListActivity {
 		case MENU_HELP:
 			showDialog(DIALOG_HELP);
 			return true;
+		case MENU_DIAL_PAD:
+			_dialPad = !_dialPad;
+			_searchView.setInputType(_dialPad ? InputType.TYPE_CLASS_PHONE : InputType.TYPE_CLASS_TEXT);
+			_searchView.setText(null);
+			_searchView.requestFocus();
+			return true;
+		case MENU_LIMIT:
+			showDialog(DIALOG_LIMIT);
+			return true;
+		case MENU_BUNDLE:
+			//removes every notification, so post them all again in the new mode
+			_notificationHelper.setBundled(!_notificationHelper.isBundled());
+			cleanNotifications();
+			return true;
+		case MENU_DIAGNOSTICS:
+			startActivity(new Intent(this, DiagnosticsActivity.class));
+			return true;
 		}
 		
 		return false;
@@ -129,8 +543,31 @@ public class Dialify extends ListActivity {
 		switch (id) {
 		case DIALOG_HELP: return AlertForString(R.string.help_content);
 		case DIALOG_NO_CONTACTS: return AlertForString(R.string.no_contacts);
-		case DIALOG_TOO_MANY: return AlertForString(R.string.too_many);
-		case DIALOG_AT_MAX: return AlertForString(R.string.at_max);
+		case DIALOG_TOO_MANY:
+		case DIALOG_AT_MAX:
+			//the message depends on the current limit, so it is filled in by onPrepareDialog
+			return AlertForString(R.string.at_max);
+		case DIALOG_LIMIT:
+			final int[] limits = getResources().getIntArray(R.array.selection_limits);
+			String[] labels = new String[limits.length];
+			int checked = -1;
+			
+			for (int i = 0; i < limits.length; i++) {
+				labels[i] = String.valueOf(limits[i]);
+				if (limits[i] == _selectionManager.getMaxSelections()) checked = i;
+			}
+			
+			return new AlertDialog.Builder(Dialify.this)
+				.setTitle(R.string.limit_title)
+				.setSingleChoiceItems(labels, checked, new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						_selectionManager.setMaxSelections(limits[which]);
+						
+						//the checked item is set when the dialog is built, so build it again next time
+						removeDialog(DIALOG_LIMIT);
+					}
+				})
+				.create();
 		case DIALOG_SELECT_NOTIFICATION_TYPE:
 			return new AlertDialog.Builder(Dialify.this)
 				.setTitle(R.string.select_notification_type_title)
@@ -160,7 +597,10 @@ public class Dialify extends ListActivity {
 							//remove existing selections and notifications
 							removeNotificationsAndDeleteSelectionsForContact(_selectedContact.getId());
 							
-							_selectedContactNameView.setChecked(false);
+							//saves the remaining notifications and stops watching contacts if there are none
+							cleanNotifications();
+							
+							_contactAdapter.notifyDataSetChanged();
 							break;
 						}
 						
@@ -175,17 +615,12 @@ public class Dialify extends ListActivity {
 								return;
 							}
 							
-							//remove existing selections and notifications
-							removeNotificationsAndDeleteSelectionsForContact(_selectedContact.getId());
-							
-							//note the settings in prefs and create the notifications
-							for (NotificationType type : types) {
-								_selectionManager.setSelection(_selectedContact.getId(), type);
-							}
+							//replace existing selections in one write; the cleaner updates or removes their notifications
+							_selectionManager.setSelections(_selectedContact.getId(), types);
 							
 							cleanNotifications();
 							
-							_selectedContactNameView.setChecked(true);
+							_contactAdapter.notifyDataSetChanged();
 						}
 						
 					}
@@ -202,6 +637,18 @@ public class Dialify extends ListActivity {
 		_selectionManager.deleteSelectionsForContact(contactId);
 	}
 	
+	@Override
+	protected void onPrepareDialog(int id, Dialog dialog) {
+		switch (id) {
+		case DIALOG_TOO_MANY:
+			((AlertDialog)dialog).setMessage(getString(R.string.too_many, _selectionManager.getMaxSelections()));
+			break;
+		case DIALOG_AT_MAX:
+			((AlertDialog)dialog).setMessage(getString(R.string.at_max, _selectionManager.getMaxSelections()));
+			break;
+		}
+	}
+	
 	/** @return A simple alert w/OK button for the given string ID */
 	private Dialog AlertForString(int stringId) {
 		return new AlertDialog.Builder(this)
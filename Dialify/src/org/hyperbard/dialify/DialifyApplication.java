@@ -0,0 +1,44 @@
+package org.hyperbard.dialify;
+
+import android.app.Application;
+import android.content.Context;
+
+/**
+ * Holds the helpers shared by everything in the process, so the selections are loaded and the contact types read
+ * once rather than by every activity, receiver and service (or every time an activity is recreated).
+ * <p>
+ * Helpers are created on first use, against the application context so they never hold on to an activity.
+ */
+public class DialifyApplication extends Application {
+
+	private SelectionManager _selectionManager;
+	private ContactsHelper _contactsHelper;
+	private NotificationHelper _notificationHelper;
+	
+	/** @return the application of the given context's process */
+	public static DialifyApplication get(Context context) {
+		return (DialifyApplication)context.getApplicationContext();
+	}
+	
+	public synchronized SelectionManager getSelectionManager() {
+		if (_selectionManager == null) _selectionManager = new SelectionManager(this);
+		return _selectionManager;
+	}
+	
+	public synchronized ContactsHelper getContactsHelper() {
+		if (_contactsHelper == null) _contactsHelper = new ContactsHelper(this);
+		return _contactsHelper;
+	}
+	
+	public synchronized NotificationHelper getNotificationHelper() {
+		if (_notificationHelper == null) _notificationHelper = new NotificationHelper(this);
+		return _notificationHelper;
+	}
+	
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		ContactsHelper.onLowMemory();
+	}
+	
+}
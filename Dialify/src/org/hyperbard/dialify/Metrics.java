@@ -0,0 +1,202 @@
+package org.hyperbard.dialify;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+/**
+ * Process-wide latency histograms for the hot paths, and counters for how often things happen, cheap enough to leave
+ * on in release builds.
+ * <p>
+ * Recording never allocates: every histogram is preallocated with one bucket per power of two microseconds, and
+ * callers pass in the start time from {@link #start()} rather than an object. Percentiles are reported as the upper
+ * bound of the bucket they fall in, so are accurate to within a factor of two. See {@link DiagnosticsActivity}.
+ */
+public class Metrics {
+
+	/** A timed operation. */
+	public enum Timer {
+		CONTACTS_QUERY("ContactsHelper.query"),
+		SNAPSHOT_READ("ContactsHelper.readSnapshot"),
+		GET_PHOTO("ContactsHelper.getPhoto"),
+		BIND_VIEW("ContactCursorAdapter.bindView"),
+		CLEAN("NotificationCleaner.run"),
+		CREATE_NOTIFICATION("NotificationHelper.createNotification"),
+		DATABASE_QUERY("DatabaseHelper.query"),
+		DATABASE_INSERT("DatabaseHelper.insert"),
+		DATABASE_REPLACE("DatabaseHelper.replace"),
+		DATABASE_DELETE("DatabaseHelper.delete"),
+		DATABASE_APPLY("DatabaseHelper.apply"),
+		NOTIFICATION_QUEUE_WAIT("NotificationQueue wait");
+
+		private String _name;
+		public String getName() { return _name; }
+
+		private Timer(String name) {
+			_name = name;
+		}
+	}
+
+	/** Something counted. */
+	public enum Counter {
+		PHOTO_CACHE_HITS("photo cache hits"),
+		PHOTO_CACHE_MISSES("photo cache misses"),
+		NOTIFICATIONS_UNCHANGED("notifications unchanged"),
+		CONTACTS_CHANGED("contacts changed"),
+		CONTACTS_UNCHANGED("contact changes leaving every phone row as it was"),
+		CONTACT_CHANGES_IGNORED("contact changes not affecting selections"),
+		NOTIFICATION_UPDATES_MERGED("notification updates merged"),
+		NOTIFICATION_UPDATES_DROPPED("notification updates dropped");
+
+		private String _name;
+		public String getName() { return _name; }
+
+		private Counter(String name) {
+			_name = name;
+		}
+	}
+
+	/** Bucket i holds durations under 2^i microseconds and over half that; the last holds everything longer. */
+	private static final int BUCKETS = 32;
+
+	//values() copies its array, so take one copy up front
+	private static final Timer[] TIMERS = Timer.values();
+	private static final Counter[] COUNTERS = Counter.values();
+
+	/** Where {@link #dump(Context)} writes to, in the app's files directory. */
+	public static final String DUMP_FILE = "metrics.txt";
+
+	private static final Object LOCK = new Object();
+
+	//histograms and totals by timer ordinal
+	private static final long[][] _buckets = new long[TIMERS.length][BUCKETS];
+	private static final long[] _counts = new long[TIMERS.length];
+	private static final long[] _totalNanos = new long[TIMERS.length];
+	private static final long[] _maxNanos = new long[TIMERS.length];
+
+	//by counter ordinal
+	private static final long[] _counters = new long[COUNTERS.length];
+
+	//when the metrics were last reset, in uptime
+	private static long _since = SystemClock.uptimeMillis();
+
+	/** @return the start time of an operation, to pass to {@link #record(Timer, long)} when it ends */
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	/** Records an operation that started at the given time (from {@link #start()}) and has just ended. */
+	public static void record(Timer timer, long startNanos) {
+		long nanos = System.nanoTime() - startNanos;
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000));
+		int i = timer.ordinal();
+
+		synchronized (LOCK) {
+			_buckets[i][bucket]++;
+			_counts[i]++;
+			_totalNanos[i] += nanos;
+			if (nanos > _maxNanos[i]) _maxNanos[i] = nanos;
+		}
+	}
+
+	public static void count(Counter counter) {
+		count(counter, 1);
+	}
+
+	public static void count(Counter counter, long times) {
+		synchronized (LOCK) {
+			_counters[counter.ordinal()] += times;
+		}
+	}
+
+	public static void reset() {
+		synchronized (LOCK) {
+			for (int i = 0; i < TIMERS.length; i++) {
+				for (int bucket = 0; bucket < BUCKETS; bucket++) _buckets[i][bucket] = 0;
+				_counts[i] = 0;
+				_totalNanos[i] = 0;
+				_maxNanos[i] = 0;
+			}
+
+			for (int i = 0; i < COUNTERS.length; i++) _counters[i] = 0;
+			_since = SystemClock.uptimeMillis();
+		}
+	}
+
+	/** @return a readable report of every timer and counter */
+	public static String format() {
+		StringBuilder report = new StringBuilder();
+
+		synchronized (LOCK) {
+			report.append("Since ").append((SystemClock.uptimeMillis() - _since) / 1000).append("s ago\n");
+			report.append("Times in ms; percentiles are upper bounds\n\n");
+
+			for (Timer timer : TIMERS) {
+				int i = timer.ordinal();
+				report.append(timer.getName()).append('\n');
+
+				if (_counts[i] == 0) {
+					report.append("  not run\n");
+					continue;
+				}
+
+				report.append(String.format(
+						"  n=%d mean=%.2f p50=%s p90=%s p99=%s max=%.2f\n",
+						_counts[i],
+						_totalNanos[i] / (_counts[i] * 1e6),
+						formatPercentile(i, 0.5),
+						formatPercentile(i, 0.9),
+						formatPercentile(i, 0.99),
+						_maxNanos[i] / 1e6));
+			}
+
+			report.append('\n');
+			for (Counter counter : COUNTERS) {
+				report.append(counter.getName()).append(": ").append(_counters[counter.ordinal()]).append('\n');
+			}
+		}
+
+		return report.toString();
+	}
+
+	/** @return the upper bound, in milliseconds, of the bucket holding the given fraction of the timer's durations */
+	private static String formatPercentile(int i, double fraction) {
+		long target = (long)Math.ceil(_counts[i] * fraction);
+		long seen = 0;
+
+		for (int bucket = 0; bucket < BUCKETS - 1; bucket++) {
+			seen += _buckets[i][bucket];
+			if (seen >= target) return String.format("%.3f", (1L << bucket) / 1000.0);
+		}
+
+		return String.format(">%.0f", (1L << (BUCKETS - 2)) / 1000.0);
+	}
+
+	/** @return the report headed with the time, as saved and sent */
+	public static String formatWithTime() {
+		return "Dialify metrics at " + new Date() + "\n" + format();
+	}
+
+	/**
+	 * Writes the report, with the time, to {@link #DUMP_FILE}. The file is private, as the timings are derived from the
+	 * user's contacts; send the report with {@link DiagnosticsActivity} to attach it to a bug report.
+	 * @return the file written
+	 */
+	public static File dump(Context context) throws IOException {
+		Writer writer = new OutputStreamWriter(context.openFileOutput(DUMP_FILE, Context.MODE_PRIVATE));
+
+		try {
+			writer.write(formatWithTime());
+		} finally {
+			writer.close();
+		}
+
+		return context.getFileStreamPath(DUMP_FILE);
+	}
+
+}
@@ -1,23 +1,112 @@
 package org.hyperbard.dialify;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import org.hyperbard.dialify.ContactsHelper.Contact;
-import org.hyperbard.dialify.ContactsHelper.Sort;
+import org.hyperbard.dialify.Metrics.Counter;
+import org.hyperbard.dialify.Metrics.Timer;
 import org.hyperbard.dialify.SelectionManager.Selection;
 
-import android.database.Cursor;
-
+import android.os.SystemClock;
 
 /**
- * Cleans up notifications by removing and recreating them.
+ * Cleans up notifications by reconciling them with the current selections: only notifications whose contact, type or
+ * photo changed are posted again, and those without a selection are removed.
  */
 public class NotificationCleaner implements Runnable {
 	
+	/** Notified when a cleanup requested with {@link NotificationCleaner#clean(OnCleanedListener)} has finished. */
+	public interface OnCleanedListener {
+		/** Called on the cleaner's background thread. */
+		void onCleaned();
+	}
+	
+	/** How long to wait for further requests before cleaning, so bursts of requests result in a single pass. */
+	private static final long DEBOUNCE_MILLIS = 250;
+	
+	/** As {@link #DEBOUNCE_MILLIS}, for passes caused by contact changes, which arrive in long bursts during a sync. */
+	private static final long CHANGE_DEBOUNCE_MILLIS = 2000;
+	
+	/** The longest a requested pass is pushed back by further requests, so a steady stream can't starve it. */
+	private static final long MAX_DELAY_MILLIS = 10000;
+	
+	//every asynchronous cleanup runs on this one thread, so passes never overlap
+	private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					return new Thread(runnable, "NotificationCleaner");
+				}
+			}
+	);
+	
+	private static final Object QUEUE_LOCK = new Object();
+	
+	//the most recently requested cleaner, which replaces any earlier one that hasn't started yet
+	private static NotificationCleaner _pending;
+	private static List<OnCleanedListener> _pendingListeners = new ArrayList<OnCleanedListener>();
+	private static ScheduledFuture<?> _scheduled;
+	
+	//when the earliest request covered by the pending pass was made
+	private static long _firstRequested;
+	
+	//the pending pass doesn't start before this uptime, so a deferred pass isn't pulled forward by later requests
+	private static long _notBefore;
+	
+	//whether every request covered by the pending pass was for a contacts change, so it can check before cleaning
+	private static boolean _pendingCheckFirst;
+	
+	/** Runs the pending cleaner, if any, and notifies everyone waiting on it. */
+	private static final Runnable PASS = new Runnable() {
+		public void run() {
+			NotificationCleaner cleaner;
+			List<OnCleanedListener> listeners;
+			boolean checkFirst;
+			
+			synchronized (QUEUE_LOCK) {
+				cleaner = _pending;
+				listeners = _pendingListeners;
+				checkFirst = _pendingCheckFirst;
+				_pending = null;
+				_pendingListeners = new ArrayList<OnCleanedListener>();
+				_notBefore = 0;
+			}
+			
+			if (cleaner == null) return;
+			
+			try {
+				if (checkFirst) {
+					cleaner.runIfChanged();
+				} else {
+					cleaner.run();
+				}
+			} finally {
+				for (OnCleanedListener listener : listeners) listener.onCleaned();
+			}
+		}
+	};
+	
 	ContactsHelper _contactsHelper;
 	SelectionManager _selectionManager;
 	NotificationHelper _notificationHelper;
 	
+	//set instead of the helpers when they are fetched by the pass itself
+	private DialifyApplication _application;
+	
+	/**
+	 * Creates a cleaner that fetches the application's helpers when it runs, so that asking for a cleanup (e.g. at
+	 * boot) doesn't load the selections on the asking thread.
+	 */
+	public NotificationCleaner(DialifyApplication application) {
+		_application = application;
+	}
+	
 	public NotificationCleaner(
 			ContactsHelper contactsHelper,
 			SelectionManager selectionManager,
@@ -30,44 +119,177 @@ public class NotificationCleaner implements Runnable {
 	
 	/** Synchronous */
 	public void run() {
-		//remove all existing notifications
-		_notificationHelper.removeAllNotifications();
-
-		List<Long> contacts = _selectionManager.getContactIdsInUse();
+		long start = Metrics.start();
+		fetchHelpers();
+		
+		long[] contacts = _selectionManager.getContactIdsInUse();
+		
+		//don't bother looking up contacts if the user had no notifications
+		clean(contacts, (contacts.length > 0) ? _contactsHelper.getSnapshot(contacts) : null);
+		Metrics.record(Timer.CLEAN, start);
+	}
+	
+	/**
+	 * Synchronous: as {@link #run()}, but only if a selected contact's row differs from what its notifications show, or
+	 * the contact is gone. A change to contacts that aren't selected then costs one lookup of the selected ones.
+	 */
+	public void runIfChanged() {
+		long start = Metrics.start();
+		fetchHelpers();
 		
-		//don't bother continuing if the user had no notifications
-		if (contacts.size() == 0) return;
+		long[] contacts = _selectionManager.getContactIdsInUse();
+		if (contacts.length == 0) return;
+		
+		ContactSnapshot snapshot = _contactsHelper.getSnapshot(contacts);
+		if (!changed(contacts, snapshot)) {
+			Metrics.count(Counter.CONTACT_CHANGES_IGNORED);
+			return;
+		}
 		
-		Cursor cursor = _contactsHelper.getContactsCursor(contacts, Sort.DESC);
+		clean(contacts, snapshot);
+		Metrics.record(Timer.CLEAN, start);
+	}
+	
+	private void fetchHelpers() {
+		if (_application == null) return;
 		
-		//iterate over contacts in use, creating notifications
-		if (cursor.getCount() > 0) {
-			cursor.moveToFirst();
+		_contactsHelper = _application.getContactsHelper();
+		_selectionManager = _application.getSelectionManager();
+		_notificationHelper = _application.getNotificationHelper();
+	}
+	
+	/** @return true if a selected contact is missing from the snapshot or its notifications don't show its row */
+	private boolean changed(long[] contacts, ContactSnapshot snapshot) {
+		for (long contactId : contacts) {
+			int row = snapshot.getRow(contactId);
+			if (row < 0) return true;
+			
+			List<Selection> selections = _selectionManager.getSelectionsForContactId(contactId);
+			if (selections == null) continue;
 			
-			do {
-				Contact contact = _contactsHelper.getContactAtCursor(cursor);
-				
-				for (Selection selection : _selectionManager.getSelectionsForContactId(contact.getId())) {
-					_notificationHelper.createNotification(selection.getType(), selection.getNotificationId(), contact);
+			for (Selection selection : selections) {
+				if (!_notificationHelper.isShowing(selection.getType(), selection.getNotificationId(), snapshot, row)) {
+					return true;
 				}
-				
-				contacts.remove(contact.getId()); //note which contacts are used
-				cursor.moveToNext();
-			} while (!cursor.isAfterLast());
+			}
 		}
 		
-		//remaining contacts were deleted (we had selections for them but they weren't returned by the query)
-		for (long contactId : contacts) {
-			_selectionManager.deleteSelectionsForContact(contactId);
+		return false;
+	}
+	
+	/** Brings the notifications up to date with the given contacts, read into the snapshot (null if there are none). */
+	private void clean(long[] contacts, ContactSnapshot snapshot) {
+		Set<Integer> notificationIds = new HashSet<Integer>();
+		if (contacts.length > 0) update(contacts, snapshot, notificationIds);
+		
+		//remove notifications that no longer have a selection
+		_notificationHelper.retainNotifications(notificationIds, _selectionManager.getNotificationIdLimit());
+		
+		//in bundled mode, post everything updated above in one go
+		_notificationHelper.postBundles();
+		
+		//so they can be restored at boot without this work
+		_notificationHelper.saveNotifications();
+	}
+	
+	/** Posts the notifications for the given contacts that have changed, collecting the IDs of all of them. */
+	private void update(long[] contacts, ContactSnapshot snapshot, Set<Integer> notificationIds) {
+		int[] rows = snapshot.getRows(contacts);
+		
+		//iterate over contacts in use in descending order (as the last one created goes at the top), updating notifications
+		for (int i = rows.length - 1; i >= 0; i--) {
+			int row = rows[i];
+			long contactId = snapshot.getId(row);
+			
+			//the selections may have been deleted since the contacts in use were read
+			List<Selection> selections = _selectionManager.getSelectionsForContactId(contactId);
+			if (selections == null) continue;
+			
+			for (Selection selection : selections) {
+				_notificationHelper.updateNotification(selection.getType(), selection.getNotificationId(), snapshot, row);
+				notificationIds.add(selection.getNotificationId());
+			}
+			
 		}
 		
-		cursor.close();
+		//contacts missing from the snapshot were deleted (we had selections for them but they weren't returned)
+		for (long contactId : contacts) {
+			if (snapshot.getRow(contactId) < 0) _selectionManager.deleteSelectionsForContact(contactId);
+		}
 	}
 	
-	/** Asynchronous: Spawns a thread to do the cleanup */
+	/**
+	 * Asynchronous: queues the cleanup on the cleaner thread. Requests made while a pass is waiting to start are
+	 * coalesced into it, so at most one pass is running and one is pending.
+	 */
 	public void clean() {
-		Thread thread = new Thread(this);
-		thread.start();
+		clean(null);
+	}
+	
+	/**
+	 * Asynchronous: as {@link #clean()}, notifying the listener once the pass covering this request has finished.
+	 * @param listener may be null
+	 */
+	public void clean(OnCleanedListener listener) {
+		schedule(listener, DEBOUNCE_MILLIS, MAX_DELAY_MILLIS, false);
+	}
+	
+	/**
+	 * Asynchronous: as {@link #clean()}, for when contacts have changed. Waits longer for further requests, so a sync
+	 * writing thousands of rows results in a single pass, but never more than {@link #MAX_DELAY_MILLIS} in all. Unless
+	 * a request for a full cleanup is covered by the same pass, it only cleans if a selected contact changed; see
+	 * {@link #runIfChanged()}.
+	 */
+	public void cleanAfterContactsChanged() {
+		cleanAfterContactsChanged(null);
+	}
+	
+	/**
+	 * Asynchronous: as {@link #cleanAfterContactsChanged()}, notifying the listener once the pass has finished.
+	 * @param listener may be null
+	 */
+	public void cleanAfterContactsChanged(OnCleanedListener listener) {
+		schedule(listener, CHANGE_DEBOUNCE_MILLIS, MAX_DELAY_MILLIS, true);
+	}
+	
+	/**
+	 * Asynchronous: as {@link #clean()}, but waits the given time first, e.g. for the device to finish booting. Requests
+	 * made meanwhile are covered by the same pass, and don't bring it forward.
+	 */
+	public void cleanLater(long delayMillis) {
+		cleanLater(delayMillis, null);
+	}
+	
+	/**
+	 * Asynchronous: as {@link #cleanLater(long)}, notifying the listener once the pass has finished.
+	 * @param listener may be null
+	 */
+	public void cleanLater(long delayMillis, OnCleanedListener listener) {
+		synchronized (QUEUE_LOCK) {
+			_notBefore = Math.max(_notBefore, SystemClock.uptimeMillis() + delayMillis);
+			schedule(listener, delayMillis, delayMillis, false);
+		}
+	}
+	
+	private void schedule(OnCleanedListener listener, long debounceMillis, long maxDelayMillis, boolean checkFirst) {
+		synchronized (QUEUE_LOCK) {
+			long now = SystemClock.uptimeMillis();
+			if (_pending == null) {
+				_firstRequested = now;
+				_pendingCheckFirst = checkFirst;
+			} else {
+				_pendingCheckFirst &= checkFirst;
+			}
+			
+			_pending = this;
+			if (listener != null) _pendingListeners.add(listener);
+			
+			//push back a pass that hasn't started yet; one that has will be followed by a new one
+			long delay = Math.min(debounceMillis, Math.max(0, _firstRequested + maxDelayMillis - now));
+			delay = Math.max(delay, _notBefore - now);
+			if (_scheduled != null) _scheduled.cancel(false);
+			_scheduled = EXECUTOR.schedule(PASS, delay, TimeUnit.MILLISECONDS);
+		}
 	}
 	
 }
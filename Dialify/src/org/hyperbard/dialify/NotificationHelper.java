@@ -1,37 +1,83 @@
 package org.hyperbard.dialify;
 
-import org.hyperbard.dialify.ContactsHelper.Contact;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hyperbard.dialify.Metrics.Counter;
+import org.hyperbard.dialify.Metrics.Timer;
 
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.view.View;
 import android.widget.RemoteViews;
 
 import org.hyperbard.dialify.R;
 
 /**
  * Utility for creating and removing notifications.
+ * <p>
+ * Each selection normally gets a notification of its own. In bundled mode (see {@link #setBundled(boolean)}) the
+ * selections are instead shown side by side as slots of a few compact notifications, so posting and removing them
+ * costs one notification per {@link #BUNDLE_SLOTS} selections. Tapping one opens a {@link BundleActivity} listing its
+ * selections to call or text, as the status bar ignores intents on the slots themselves before Honeycomb.
+ * <p>
+ * Everything is posted through a {@link NotificationQueue}, so a cleanup posting many notifications doesn't exceed
+ * what the notification service will accept; see {@link #setPostsPerSecond(int)}.
  */
 public class NotificationHelper {
 
-	/** Notification types and their associated scheme (for URI generation) and action (for Intent creation). */
+	/**
+	 * Notification types and their associated scheme (for URI generation), action (for Intent creation) and code (for
+	 * storage).
+	 */
 	public enum NotificationType {
-		CALL("tel:", Intent.ACTION_CALL, R.string.call),
-		TEXT("smsto:", Intent.ACTION_SENDTO, R.string.text);
+		CALL(1, "tel:", Intent.ACTION_CALL, R.string.call),
+		TEXT(2, "smsto:", Intent.ACTION_SENDTO, R.string.text);
 		
+		private int _code;
 		private String _scheme;
 		private String _action;
 		private int _verbStringId;
 		
-		private NotificationType(String scheme, String action, int verbStringId) {
+		private NotificationType(int code, String scheme, String action, int verbStringId) {
+			_code = code;
 			_scheme = scheme;
 			_action = action;
 			_verbStringId = verbStringId;
 		}
 		
+		/** @return the code the type is stored as; codes never change, unlike ordinals */
+		public int getCode() { return _code; }
+		
+		/** @return the type stored as the given code, or null if there is none */
+		public static NotificationType forCode(int code) {
+			for (NotificationType type : values()) {
+				if (type._code == code) return type;
+			}
+			
+			return null;
+		}
+		
 		/** @return the scheme used to construct intent URIs */
 		public String getScheme() { return _scheme; }
 		
@@ -42,52 +88,608 @@ public class NotificationHelper {
 		public int getVerbStringId() { return _verbStringId; }
 	}
 	
+	/**
+	 * What was last posted under a notification ID, so unchanged notifications can be left alone and everything posted
+	 * can be saved for the next boot.
+	 */
+	private static class PostedNotification {
+		long contactId;
+		long personId;
+		NotificationType type;
+		String displayName;
+		String number;
+		String contactType;
+		long photoVersion;
+		long when;
+		Bitmap photo;
+		
+		//the photo compressed for saving, or an empty array for the placeholder; compressed on first save
+		byte[] savedPhoto;
+		
+		//what was built to post it, reused by the next post for the same contact and type where it still applies
+		RemoteViews contentView;
+		PendingIntent contentIntent;
+		
+		/** @return true if the other notification's views would show exactly what this one's do */
+		boolean shows(PostedNotification other) {
+			return photo == other.photo
+				&& type == other.type
+				&& displayName.equals(other.displayName)
+				&& number.equals(other.number)
+				&& (contactType == null ? other.contactType == null : contactType.equals(other.contactType));
+		}
+		
+		/** @return true if everything but the photo is the same as the snapshot row's */
+		boolean matches(NotificationType type, ContactSnapshot snapshot, int row) {
+			return contactId == snapshot.getId(row)
+				&& this.type == type
+				&& (contactType == null ? snapshot.getType(row) == null : contactType.equals(snapshot.getType(row)))
+				&& equals(displayName, snapshot.getNameChars(), snapshot.getNameStart(row), snapshot.getNameLength(row))
+				&& equals(number, snapshot.getNumberChars(), snapshot.getNumberStart(row), snapshot.getNumberLength(row));
+		}
+		
+		/** Compares without allocating a string for the chars. */
+		private static boolean equals(String s, char[] chars, int start, int length) {
+			if (s.length() != length) return false;
+			for (int i = 0; i < length; i++) if (s.charAt(i) != chars[start + i]) return false;
+			return true;
+		}
+	}
+	
+	/** What has been posted through one queue, shared by every helper posting through it. */
+	private static class PostedState {
+		final NotificationQueue queue;
+		
+		//what was last posted under each notification ID; guards the rest of the state
+		final HashMap<Integer, PostedNotification> posted = new HashMap<Integer, PostedNotification>();
+		
+		//false until the first reconciliation, as until then we can't know what an earlier process posted
+		boolean reconciled;
+		
+		//whether posted has changed since it was last saved
+		boolean dirty;
+		
+		//whether posted has changed since the bundled notifications were last posted
+		boolean bundleDirty;
+		
+		//how many bundled notifications are posted, or -1 until they are first posted
+		int bundles = -1;
+		
+		PostedState(NotificationQueue queue) {
+			this.queue = queue;
+		}
+	}
+	
+	/** Where posted notifications are saved so they can be restored at boot; see {@link #saveNotifications()}. */
+	private static final String SAVED_FILE = "notifications.bin";
+	private static final int SAVED_VERSION = 2;
+	
+	//version 1 didn't save photo versions; restored as one no photo has, so the first cleanup checks the photos
+	private static final int SAVED_VERSION_WITHOUT_PHOTO_VERSIONS = 1;
+	private static final long UNKNOWN_PHOTO_VERSION = -1;
+	
+	private static final String PREFERENCES_NAME = "notifications";
+	private static final String PREFERENCE_BUNDLED = "bundled";
+	private static final String PREFERENCE_POSTS_PER_SECOND = "posts_per_second";
+	
+	/**
+	 * The default budget of posts, sized so a full set of {@link SelectionManager#MAX_SELECTIONS_LIMIT} selections is
+	 * posted within about five seconds of boot or a restore. Lower it with {@link #setPostsPerSecond(int)} where the
+	 * notification service drops posts arriving that fast.
+	 */
+	public static final int DEFAULT_POSTS_PER_SECOND = SelectionManager.MAX_SELECTIONS_LIMIT / 5;
+	
+	/** Selections shown by each bundled notification; see notification_bundle.xml. */
+	private static final int BUNDLE_SLOTS = 5;
+	
+	/** Bundled notifications are posted under IDs from this one up, clear of those selections use. */
+	private static final int FIRST_BUNDLE_ID = SelectionManager.MAX_SELECTIONS_LIMIT;
+	private static final int MAX_BUNDLES = (SelectionManager.MAX_SELECTIONS_LIMIT + BUNDLE_SLOTS - 1) / BUNDLE_SLOTS;
+	
+	//the views of each slot in notification_bundle.xml
+	private static final int[] SLOT_IDS = {
+		R.id.notification_slot_0, R.id.notification_slot_1, R.id.notification_slot_2,
+		R.id.notification_slot_3, R.id.notification_slot_4
+	};
+	private static final int[] SLOT_PHOTO_IDS = {
+		R.id.notification_slot_photo_0, R.id.notification_slot_photo_1, R.id.notification_slot_photo_2,
+		R.id.notification_slot_photo_3, R.id.notification_slot_photo_4
+	};
+	private static final int[] SLOT_NAME_IDS = {
+		R.id.notification_slot_name_0, R.id.notification_slot_name_1, R.id.notification_slot_name_2,
+		R.id.notification_slot_name_3, R.id.notification_slot_name_4
+	};
+	private static final int[] SLOT_VERB_IDS = {
+		R.id.notification_slot_verb_0, R.id.notification_slot_verb_1, R.id.notification_slot_verb_2,
+		R.id.notification_slot_verb_3, R.id.notification_slot_verb_4
+	};
+	
+	/** Orders bundled selections as separate notifications are shown: the most recently posted first. */
+	private static final Comparator<PostedNotification> NEWEST_FIRST = new Comparator<PostedNotification>() {
+		public int compare(PostedNotification a, PostedNotification b) {
+			return (a.when < b.when) ? 1 : (a.when > b.when) ? -1 : 0;
+		}
+	};
+	
+	//everything the app posts goes through one queue, so the budget covers the whole process
+	private static PostedState _shared;
+	
 	private Context _context;
-
-	NotificationManager _manager;
+	private SharedPreferences _preferences;
+	private PostedState _state;
 	
 	public NotificationHelper(Context context) {
 		_context = context;
-		_manager = (NotificationManager)_context.getSystemService(Context.NOTIFICATION_SERVICE);
+		_preferences = _context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		
+		synchronized (NotificationHelper.class) {
+			if (_shared == null) {
+				_shared = new PostedState(new NotificationQueue(
+						(NotificationManager)_context.getSystemService(Context.NOTIFICATION_SERVICE),
+						getPostsPerSecond()));
+			}
+		}
+		
+		_state = _shared;
 	}
 	
-	/** Creates a notification of the specified type for a contact. */
-	public void createNotification(NotificationType type, int notificationId, Contact contact) {
-		Notification notification = new Notification(-1, null, System.currentTimeMillis());
-
-		notification.flags |= Notification.FLAG_ONGOING_EVENT | Notification.FLAG_NO_CLEAR;
-
+	/**
+	 * Creates a helper posting through the given queue rather than the app's, e.g. one that records posts in tests.
+	 * It starts with nothing posted and shares that with no other helper.
+	 */
+	public NotificationHelper(Context context, NotificationQueue queue) {
+		_context = context;
+		_preferences = _context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		_state = new PostedState(queue);
+	}
+	
+	/** @return the most notifications posted per second; further posts wait their turn */
+	public int getPostsPerSecond() {
+		return _preferences.getInt(PREFERENCE_POSTS_PER_SECOND, DEFAULT_POSTS_PER_SECOND);
+	}
+	
+	public void setPostsPerSecond(int postsPerSecond) {
+		postsPerSecond = Math.max(1, postsPerSecond);
+		_preferences.edit().putInt(PREFERENCE_POSTS_PER_SECOND, postsPerSecond).commit();
+		_state.queue.setPostsPerSecond(postsPerSecond);
+	}
+	
+	/** @return true if selections are shown in bundled notifications rather than one notification each */
+	public boolean isBundled() {
+		return _preferences.getBoolean(PREFERENCE_BUNDLED, false);
+	}
+	
+	/**
+	 * Chooses whether selections are shown in bundled notifications. Changing it removes every notification; clean
+	 * afterwards to post them again in the new mode.
+	 */
+	public void setBundled(boolean bundled) {
+		if (bundled == isBundled()) return;
+		
+		_preferences.edit().putBoolean(PREFERENCE_BUNDLED, bundled).commit();
+		removeAllNotifications();
+	}
+	
+	/**
+	 * Posts a notification of the specified type for the contact at the given snapshot row, unless an identical one
+	 * is already posted under the same ID.
+	 * @return true if the notification was posted
+	 */
+	public boolean updateNotification(NotificationType type, int notificationId, ContactSnapshot snapshot, int row) {
+		if (isShowing(type, notificationId, snapshot, row)) {
+			Metrics.count(Counter.NOTIFICATIONS_UNCHANGED);
+			return false;
+		}
+		
+		createNotification(type, notificationId, snapshot, row);
+		return true;
+	}
+	
+	/**
+	 * @return true if the notification posted under the ID is of the specified type and shows the contact at the given
+	 *         snapshot row as it is, photo included
+	 */
+	public boolean isShowing(NotificationType type, int notificationId, ContactSnapshot snapshot, int row) {
+		PostedNotification posted;
+		synchronized (_state.posted) {
+			posted = _state.posted.get(notificationId);
+		}
+		
+		//the photo is checked last, as that may read it from the provider
+		return posted != null && posted.matches(type, snapshot, row)
+			&& posted.photoVersion == ContactsHelper.getPhotoVersion(_context, posted.personId);
+	}
+	
+	/** Creates a notification of the specified type for the contact at the given snapshot row. */
+	public void createNotification(NotificationType type, int notificationId, ContactSnapshot snapshot, int row) {
+		long start = Metrics.start();
+		PostedNotification posted = new PostedNotification();
+		posted.contactId = snapshot.getId(row);
+		posted.personId = snapshot.getPersonId(row);
+		posted.type = type;
+		posted.displayName = snapshot.getDisplayName(row);
+		posted.number = snapshot.getNumber(row);
+		posted.contactType = snapshot.getType(row);
+		posted.photoVersion = ContactsHelper.getPhotoVersion(_context, posted.personId);
+		posted.photo = ContactsHelper.getPhoto(_context, posted.personId);
+		
+		//keep the original time when updating so the notification doesn't jump around the list
+		synchronized (_state.posted) {
+			PostedNotification previous = _state.posted.get(notificationId);
+			posted.when = (previous != null) ? previous.when : System.currentTimeMillis();
+		}
+		
+		post(notificationId, posted);
+		Metrics.record(Timer.CREATE_NOTIFICATION, start);
+	}
+	
+	/**
+	 * Posts the notification described by posted and records it. What was built for the notification last posted for
+	 * the same contact and type is reused where it still applies: its pending intent while the number is the same
+	 * (saving a call to the activity manager), and its views while everything they show is the same.
+	 * <p>
+	 * In bundled mode nothing is built or posted until {@link #postBundles()}. Otherwise the notification is queued,
+	 * the newest first.
+	 */
+	private void post(int notificationId, PostedNotification posted) {
+		PostedNotification previous;
+		synchronized (_state.posted) {
+			previous = _state.posted.get(notificationId);
+		}
+		
+		boolean sameSlot = previous != null && previous.contactId == posted.contactId && previous.type == posted.type;
+		
+		if (!isBundled()) {
+			if (sameSlot && previous.number.equals(posted.number)) {
+				posted.contentIntent = previous.contentIntent;
+			}
+			
+			//a previous post in bundled mode built no intent, views or notification
+			PendingIntent superseded = null;
+			if (posted.contentIntent == null) {
+				posted.contentIntent = createContentIntent(notificationId, posted.type, posted.number);
+				
+				//don't leave the system holding an intent that will never fire, but not before the notification
+				//showing it is replaced, and not if the system handed back the same one for an equal intent
+				if (previous != null && !posted.contentIntent.equals(previous.contentIntent)) {
+					superseded = previous.contentIntent;
+				}
+			}
+			
+			posted.contentView = (sameSlot && previous.contentView != null && previous.shows(posted))
+				? previous.contentView
+				: createContentView(posted);
+			
+			//not reused, as the queue may still be waiting to post the last one built
+			Notification notification = new Notification();
+			notification.icon = -1;
+			notification.when = posted.when;
+			notification.flags = Notification.FLAG_ONGOING_EVENT | Notification.FLAG_NO_CLEAR;
+			notification.contentView = posted.contentView;
+			notification.contentIntent = posted.contentIntent;
+			
+			_state.queue.notify(notificationId, notification, posted.when, superseded);
+		}
+		
+		synchronized (_state.posted) {
+			_state.posted.put(notificationId, posted);
+			_state.dirty = true;
+			_state.bundleDirty = true;
+		}
+	}
+	
+	/**
+	 * In bundled mode, posts the bundled notifications again if any selection was posted or removed since they were
+	 * last posted, and removes those no longer needed. Call after a batch of updates, so it costs one post per bundle
+	 * however many selections changed.
+	 */
+	public void postBundles() {
+		if (!isBundled()) return;
+		
+		List<PostedNotification> entries;
+		synchronized (_state.posted) {
+			if (!_state.bundleDirty && _state.bundles != -1) return;
+			
+			entries = new ArrayList<PostedNotification>(_state.posted.values());
+			_state.bundleDirty = false;
+		}
+		
+		Collections.sort(entries, NEWEST_FIRST);
+		int bundles = (entries.size() + BUNDLE_SLOTS - 1) / BUNDLE_SLOTS;
+		
+		for (int bundle = 0; bundle < bundles; bundle++) {
+			RemoteViews contentView = new RemoteViews(_context.getPackageName(), R.layout.notification_bundle);
+			
+			for (int slot = 0; slot < BUNDLE_SLOTS; slot++) {
+				int i = bundle * BUNDLE_SLOTS + slot;
+				
+				//keep the empty slots' space so the filled ones are the same size in every bundle
+				if (i >= entries.size()) {
+					contentView.setViewVisibility(SLOT_IDS[slot], View.INVISIBLE);
+					continue;
+				}
+				
+				PostedNotification posted = entries.get(i);
+				contentView.setImageViewBitmap(SLOT_PHOTO_IDS[slot], posted.photo);
+				contentView.setTextViewText(SLOT_NAME_IDS[slot], posted.displayName);
+				contentView.setTextViewText(SLOT_VERB_IDS[slot], _context.getString(posted.type.getVerbStringId()));
+			}
+			
+			Notification notification = new Notification();
+			notification.icon = -1;
+			notification.when = entries.get(bundle * BUNDLE_SLOTS).when;
+			notification.flags = Notification.FLAG_ONGOING_EVENT | Notification.FLAG_NO_CLEAR;
+			notification.contentView = contentView;
+			
+			notification.contentIntent = createBundleIntent(bundle, entries);
+			
+			//ahead of everything else, as each shows several selections
+			_state.queue.notify(FIRST_BUNDLE_ID + bundle, notification, Long.MAX_VALUE - bundle, null);
+		}
+		
+		//until this process has posted them, an earlier one may have left any number behind
+		synchronized (_state.posted) {
+			int previous = (_state.bundles == -1) ? MAX_BUNDLES : _state.bundles;
+			for (int bundle = bundles; bundle < previous; bundle++) {
+				_state.queue.cancel(FIRST_BUNDLE_ID + bundle);
+			}
+			_state.bundles = bundles;
+		}
+	}
+	
+	private RemoteViews createContentView(PostedNotification posted) {
 		RemoteViews contentView = new RemoteViews(_context.getPackageName(), R.layout.notification);
 
 		//set the photo
-		contentView.setImageViewBitmap(R.id.notification_contact_photo, ContactsHelper.getPhoto(_context, contact));
+		contentView.setImageViewBitmap(R.id.notification_contact_photo, posted.photo);
 		
 		//set the verb, i.e. "call" or "text"
-		contentView.setTextViewText(R.id.notification_notification_type, _context.getString(type.getVerbStringId()));
+		contentView.setTextViewText(
+				R.id.notification_notification_type, _context.getString(posted.type.getVerbStringId()));
 
 		//set the name and type
-		contentView.setTextViewText(R.id.notification_contact_name, contact.getDisplayName());
-		contentView.setTextViewText(R.id.notification_contact_type, contact.getType());
+		contentView.setTextViewText(R.id.notification_contact_name, posted.displayName);
+		contentView.setTextViewText(R.id.notification_contact_type, posted.contactType);
 		
 		//set the number
-		contentView.setTextViewText(R.id.notification_contact_number, contact.getNumber());
+		contentView.setTextViewText(R.id.notification_contact_number, posted.number);
 		
-		notification.contentView = contentView;
-
-		//create the intent that will fire when the contact is selected
-		Intent intent = new Intent(type.getAction(), Uri.parse(type.getScheme() + contact.getNumber()));
-		PendingIntent contentIntent = PendingIntent.getActivity(_context, 0, intent, 0);
-		notification.contentIntent = contentIntent;
-
-		_manager.notify(notificationId, notification);
+		return contentView;
+	}
+	
+	/**
+	 * Creates the intent that will fire when the contact is selected. Each notification ID has its own request code,
+	 * so the system never hands one notification's intent (and so its number) to another.
+	 */
+	private PendingIntent createContentIntent(int notificationId, NotificationType type, String number) {
+		Intent intent = new Intent(type.getAction(), Uri.parse(type.getScheme() + number));
+		return PendingIntent.getActivity(_context, notificationId, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+	}
+	
+	/**
+	 * Creates the intent that opens a {@link BundleActivity} listing the selections in the given bundle. Each bundle
+	 * has its own request code, so updating one bundle's selections doesn't change another's.
+	 */
+	private PendingIntent createBundleIntent(int bundle, List<PostedNotification> entries) {
+		int first = bundle * BUNDLE_SLOTS;
+		int count = Math.min(BUNDLE_SLOTS, entries.size() - first);
+		
+		int[] types = new int[count];
+		String[] names = new String[count];
+		String[] numbers = new String[count];
+		for (int slot = 0; slot < count; slot++) {
+			PostedNotification posted = entries.get(first + slot);
+			types[slot] = posted.type.getCode();
+			names[slot] = posted.displayName;
+			numbers[slot] = posted.number;
+		}
+		
+		Intent intent = new Intent(_context, BundleActivity.class);
+		intent.putExtra(BundleActivity.EXTRA_TYPES, types);
+		intent.putExtra(BundleActivity.EXTRA_NAMES, names);
+		intent.putExtra(BundleActivity.EXTRA_NUMBERS, numbers);
+		return PendingIntent.getActivity(
+				_context, FIRST_BUNDLE_ID + bundle, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+	}
+	
+	private static void cancelContentIntent(PostedNotification posted) {
+		if (posted.contentIntent != null) posted.contentIntent.cancel();
+	}
+	
+	/**
+	 * Saves everything needed to post the current notifications again, if it has changed since the last save. Photos
+	 * are saved as they were shown, so {@link #restoreNotifications()} needn't decode them from the provider.
+	 */
+	public void saveNotifications() {
+		List<Map.Entry<Integer, PostedNotification>> entries;
+		synchronized (_state.posted) {
+			if (!_state.dirty) return;
+			
+			entries = new ArrayList<Map.Entry<Integer, PostedNotification>>(_state.posted.entrySet());
+			_state.dirty = false;
+		}
+		
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			
+			out.writeInt(SAVED_VERSION);
+			out.writeInt(entries.size());
+			
+			for (Map.Entry<Integer, PostedNotification> entry : entries) {
+				PostedNotification posted = entry.getValue();
+				
+				out.writeInt(entry.getKey());
+				out.writeByte(posted.type.getCode());
+				out.writeLong(posted.contactId);
+				out.writeLong(posted.personId);
+				out.writeLong(posted.when);
+				out.writeLong(posted.photoVersion);
+				out.writeUTF(posted.displayName);
+				out.writeUTF(posted.number);
+				out.writeBoolean(posted.contactType != null);
+				if (posted.contactType != null) out.writeUTF(posted.contactType);
+				
+				byte[] photo = getSavedPhoto(posted);
+				out.writeInt(photo.length);
+				out.write(photo);
+			}
+			
+			out.flush();
+			
+			//write to the side and rename, so a crash part way through doesn't leave a truncated file
+			String temporary = SAVED_FILE + ".tmp";
+			out = new DataOutputStream(_context.openFileOutput(temporary, Context.MODE_PRIVATE));
+			try {
+				bytes.writeTo(out);
+			} finally {
+				out.close();
+			}
+			
+			if (!_context.getFileStreamPath(temporary).renameTo(_context.getFileStreamPath(SAVED_FILE))) {
+				throw new IOException("couldn't replace " + SAVED_FILE);
+			}
+		} catch (IOException e) {
+			//try again next time
+			synchronized (_state.posted) {
+				_state.dirty = true;
+			}
+		}
+	}
+	
+	/** @return the photo compressed for saving, compressing it if this is the first save since it was posted */
+	private byte[] getSavedPhoto(PostedNotification posted) {
+		if (posted.savedPhoto == null) {
+			if (posted.photo == null || posted.photo == ContactsHelper.getPlaceholderPhoto(_context)) {
+				posted.savedPhoto = new byte[0];
+			} else {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				posted.photo.compress(Bitmap.CompressFormat.PNG, 100, bytes);
+				posted.savedPhoto = bytes.toByteArray();
+			}
+		}
+		
+		return posted.savedPhoto;
+	}
+	
+	/**
+	 * Posts the notifications saved by {@link #saveNotifications()} again, e.g. at boot, reading the saved file in one go
+	 * and without touching the contacts provider or the database. The notifications may be stale; a normal cleanup
+	 * afterwards brings them up to date.
+	 * @return false if there were no saved notifications to restore
+	 */
+	public boolean restoreNotifications() {
+		File file = _context.getFileStreamPath(SAVED_FILE);
+		if (!file.exists()) return false;
+		
+		byte[] data = new byte[(int)file.length()];
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				in.readFully(data);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			int version = in.readInt();
+			if (version != SAVED_VERSION && version != SAVED_VERSION_WITHOUT_PHOTO_VERSIONS) return false;
+			
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				int notificationId = in.readInt();
+				
+				PostedNotification posted = new PostedNotification();
+				posted.type = NotificationType.forCode(in.readByte());
+				posted.contactId = in.readLong();
+				posted.personId = in.readLong();
+				posted.when = in.readLong();
+				posted.photoVersion = (version == SAVED_VERSION) ? in.readLong() : UNKNOWN_PHOTO_VERSION;
+				posted.displayName = in.readUTF();
+				posted.number = in.readUTF();
+				posted.contactType = in.readBoolean() ? in.readUTF() : null;
+				
+				posted.savedPhoto = new byte[in.readInt()];
+				in.readFully(posted.savedPhoto);
+				
+				//the saved file may come from a later version
+				if (posted.type == null) continue;
+				
+				posted.photo = (posted.savedPhoto.length > 0)
+					? BitmapFactory.decodeByteArray(posted.savedPhoto, 0, posted.savedPhoto.length)
+					: null;
+				if (posted.photo == null) posted.photo = ContactsHelper.getPlaceholderPhoto(_context);
+				
+				post(notificationId, posted);
+			}
+		} catch (IOException e) {
+			//truncated or corrupt; whatever was posted stands until the cleanup that follows
+		}
+		
+		postBundles();
+		return true;
+	}
+	
+	/**
+	 * Removes every notification posted under an ID that isn't in the given set. The first time this is called in a
+	 * process every ID below the limit is removed, as an earlier process may have left notifications behind.
+	 */
+	public void retainNotifications(Set<Integer> notificationIds, int limit) {
+		synchronized (_state.posted) {
+			if (!_state.reconciled) {
+				for (int notificationId = 0; notificationId < limit; notificationId++) {
+					if (!notificationIds.contains(notificationId) && !_state.posted.containsKey(notificationId)) {
+						_state.queue.cancel(notificationId);
+					}
+				}
+				
+				_state.reconciled = true;
+			}
+			
+			Iterator<Integer> posted = _state.posted.keySet().iterator();
+			while (posted.hasNext()) {
+				int notificationId = posted.next();
+				
+				if (!notificationIds.contains(notificationId)) {
+					_state.queue.cancel(notificationId);
+					cancelContentIntent(_state.posted.get(notificationId));
+					posted.remove();
+					_state.dirty = true;
+					_state.bundleDirty = true;
+				}
+			}
+		}
 	}
 	
 	public void removeNotification(int notificationId) {
-		_manager.cancel(notificationId);
+		_state.queue.cancel(notificationId);
+		
+		synchronized (_state.posted) {
+			PostedNotification posted = _state.posted.remove(notificationId);
+			if (posted != null) {
+				cancelContentIntent(posted);
+				_state.dirty = true;
+				_state.bundleDirty = true;
+			}
+		}
 	}
 	
 	public void removeAllNotifications() {
-		_manager.cancelAll();
+		_state.queue.cancelAll();
+		
+		synchronized (_state.posted) {
+			for (PostedNotification posted : _state.posted.values()) cancelContentIntent(posted);
+			_state.posted.clear();
+			_state.dirty = true;
+			
+			//cancelAll took the bundled notifications too
+			_state.bundleDirty = false;
+			_state.bundles = 0;
+		}
 	}
 	
 }
@@ -0,0 +1,78 @@
+package org.hyperbard.dialify;
+
+/**
+ * Hands out notification IDs from a fixed range in constant time, keeping a stack of free IDs alongside a bitset of
+ * those in use.
+ * <p>
+ * Not thread-safe: {@link SelectionManager} only uses it while holding its write lock.
+ */
+public class NotificationIdAllocator {
+
+	private int _capacity;
+
+	//bitset of the IDs in use
+	private long[] _inUse;
+
+	//free IDs, with the next one to hand out on top
+	private int[] _free;
+	private int _numFree;
+
+	//one past the highest ID ever marked as in use
+	private int _highWater;
+
+	/**
+	 * @param capacity IDs are allocated from 0 to capacity - 1
+	 * @param reserved IDs already in use, e.g. those persisted with existing selections
+	 */
+	public NotificationIdAllocator(int capacity, int[] reserved) {
+		_capacity = capacity;
+		_inUse = new long[(capacity + 63) >>> 6];
+		_free = new int[capacity];
+
+		for (int notificationId : reserved) {
+			if (notificationId >= 0 && notificationId < capacity) set(notificationId);
+		}
+
+		//push from the top down so the lowest IDs are handed out first
+		for (int notificationId = capacity - 1; notificationId >= 0; notificationId--) {
+			if (!isInUse(notificationId)) _free[_numFree++] = notificationId;
+		}
+	}
+
+	public int getCapacity() {
+		return _capacity;
+	}
+
+	/** @return one past the highest ID that has been in use since this allocator was created */
+	public int getHighWater() {
+		return _highWater;
+	}
+
+	/** @return a free notification ID, now marked as in use, or -1 if every ID is in use */
+	public int allocate() {
+		if (_numFree == 0) return -1;
+
+		int notificationId = _free[--_numFree];
+		set(notificationId);
+		return notificationId;
+	}
+
+	/** Returns an ID to the free list; IDs that aren't in use are ignored. */
+	public void release(int notificationId) {
+		if (!isInUse(notificationId)) return;
+
+		_inUse[notificationId >>> 6] &= ~(1L << notificationId);
+		_free[_numFree++] = notificationId;
+	}
+
+	public boolean isInUse(int notificationId) {
+		if (notificationId < 0 || notificationId >= _capacity) return false;
+		return (_inUse[notificationId >>> 6] & (1L << notificationId)) != 0;
+	}
+
+	private void set(int notificationId) {
+		_inUse[notificationId >>> 6] |= 1L << notificationId;
+		_highWater = Math.max(_highWater, notificationId + 1);
+	}
+
+}
@@ -0,0 +1,213 @@
+package org.hyperbard.dialify;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.hyperbard.dialify.Metrics.Counter;
+import org.hyperbard.dialify.Metrics.Timer;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.os.SystemClock;
+
+/**
+ * Posts notifications no faster than a budget of posts per second, as the notification service silently drops updates
+ * from apps that post faster, e.g. when a cleanup posts hundreds of selections back to back.
+ * <p>
+ * Updates wait in the queue until the budget allows them, and an update replaces any still waiting under the same ID,
+ * so only the latest is posted. The highest priority updates go first. Cancels aren't limited and take effect at once,
+ * dropping any update waiting under their ID. Merged and dropped updates are counted in {@link Metrics}.
+ * <p>
+ * An update can name the content intent of the notification it replaces, which is cancelled only once the update is
+ * posted, so the notification still showing stays tappable while its replacement waits.
+ */
+public class NotificationQueue {
+
+	/** Where a queue's updates go: the notification manager, or a stand-in recording them in tests. */
+	public interface Poster {
+		void notify(int notificationId, Notification notification);
+		void cancel(int notificationId);
+		void cancelAll();
+	}
+
+	/** An update waiting to be posted. */
+	private static class Update {
+		Notification notification;
+		long priority;
+
+		//the intent of the notification showing under the ID, to cancel once this is posted
+		PendingIntent superseded;
+
+		//when it was first queued, from Metrics.start(), so merging doesn't hide how long the ID has waited
+		long queued;
+	}
+
+	//every post happens on this one thread
+	private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					return new Thread(runnable, "NotificationQueue");
+				}
+			}
+	);
+
+	private Poster _poster;
+
+	//waiting updates by notification ID; guarded by this, which is also held while posting so a cancel can't be
+	//overtaken by a post of the update it dropped
+	private HashMap<Integer, Update> _pending = new HashMap<Integer, Update>();
+	private ScheduledFuture<?> _scheduled;
+
+	//the budget, refilled continuously at the rate and holding at most one second's worth
+	private int _postsPerSecond;
+	private double _tokens;
+	private long _refilled;
+
+	private final Runnable _drain = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	public NotificationQueue(final NotificationManager manager, int postsPerSecond) {
+		this(new Poster() {
+			public void notify(int notificationId, Notification notification) {
+				manager.notify(notificationId, notification);
+			}
+
+			public void cancel(int notificationId) {
+				manager.cancel(notificationId);
+			}
+
+			public void cancelAll() {
+				manager.cancelAll();
+			}
+		}, postsPerSecond);
+	}
+
+	public NotificationQueue(Poster poster, int postsPerSecond) {
+		_poster = poster;
+		_postsPerSecond = postsPerSecond;
+		_tokens = postsPerSecond;
+		_refilled = SystemClock.uptimeMillis();
+	}
+
+	public synchronized int getPostsPerSecond() {
+		return _postsPerSecond;
+	}
+
+	public synchronized void setPostsPerSecond(int postsPerSecond) {
+		refill();
+		_postsPerSecond = postsPerSecond;
+		_tokens = Math.min(_tokens, postsPerSecond);
+		schedule();
+	}
+
+	/** @return the number of updates waiting to be posted */
+	public synchronized int getPending() {
+		return _pending.size();
+	}
+
+	/**
+	 * Queues the notification to be posted under the given ID, replacing any update still waiting under it.
+	 * @param priority updates with a higher priority are posted first
+	 * @param superseded the content intent of the notification this one replaces, to cancel once this is posted, or
+	 * null if it is still in use
+	 */
+	public synchronized void notify(int notificationId, Notification notification, long priority,
+			PendingIntent superseded) {
+		Update update = _pending.get(notificationId);
+
+		if (update != null) {
+			Metrics.count(Counter.NOTIFICATION_UPDATES_MERGED);
+
+			if (update.superseded == null) {
+				//the merged update reused the intent still showing, so that is the one this replaces
+				update.superseded = superseded;
+			} else if (superseded != null) {
+				//the merged update's own intent, which was never shown
+				superseded.cancel();
+			}
+		} else {
+			update = new Update();
+			update.queued = Metrics.start();
+			update.superseded = superseded;
+			_pending.put(notificationId, update);
+		}
+
+		update.notification = notification;
+		update.priority = priority;
+		schedule();
+	}
+
+	/** Removes the notification posted under the given ID now, dropping any update waiting under it. */
+	public synchronized void cancel(int notificationId) {
+		Update update = _pending.remove(notificationId);
+		if (update != null) drop(update);
+		_poster.cancel(notificationId);
+	}
+
+	/** Removes every notification the app has posted now, dropping every waiting update. */
+	public synchronized void cancelAll() {
+		for (Update update : _pending.values()) drop(update);
+		_pending.clear();
+		_poster.cancelAll();
+	}
+
+	private void drop(Update update) {
+		Metrics.count(Counter.NOTIFICATION_UPDATES_DROPPED);
+
+		//the notification that was showing is going too
+		if (update.superseded != null) update.superseded.cancel();
+	}
+
+	/** Posts as many waiting updates as the budget allows, highest priority first, then waits for it to refill. */
+	private synchronized void drain() {
+		_scheduled = null;
+		refill();
+
+		while (_tokens >= 1 && !_pending.isEmpty()) {
+			//there are at most a few hundred waiting, so a scan is cheaper than keeping them ordered through merges
+			Integer next = null;
+			Update nextUpdate = null;
+
+			for (Map.Entry<Integer, Update> entry : _pending.entrySet()) {
+				if (nextUpdate == null || entry.getValue().priority > nextUpdate.priority) {
+					next = entry.getKey();
+					nextUpdate = entry.getValue();
+				}
+			}
+
+			_pending.remove(next);
+			_tokens--;
+
+			_poster.notify(next, nextUpdate.notification);
+			if (nextUpdate.superseded != null) nextUpdate.superseded.cancel();
+			Metrics.record(Timer.NOTIFICATION_QUEUE_WAIT, nextUpdate.queued);
+		}
+
+		schedule();
+	}
+
+	private void refill() {
+		long now = SystemClock.uptimeMillis();
+		_tokens = Math.min(_postsPerSecond, _tokens + (now - _refilled) * _postsPerSecond / 1000.0);
+		_refilled = now;
+	}
+
+	/** Schedules a drain for when the budget next allows a post, unless one is scheduled or nothing is waiting. */
+	private void schedule() {
+		if (_scheduled != null || _pending.isEmpty()) return;
+
+		refill();
+		long delay = (_tokens >= 1) ? 0 : (long)Math.ceil((1 - _tokens) * 1000 / _postsPerSecond);
+		_scheduled = EXECUTOR.schedule(_drain, delay, TimeUnit.MILLISECONDS);
+	}
+
+}
@@ -0,0 +1,287 @@
+package org.hyperbard.dialify;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.hyperbard.dialify.ContactsHelper.Page;
+
+import android.database.Cursor;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * A cursor over every contact that only holds the fixed-size windows of rows around the current position, for
+ * address books too big to keep in memory as a whole {@link ContactSnapshot}.
+ * <p>
+ * Each window is read with a keyset query continuing from the last row of the window before it, or with an offset
+ * when jumping to a window whose neighbour isn't loaded. Windows are only read on a background thread: the next one in
+ * the direction of movement is read ahead, and a jump to one that isn't loaded shows placeholder rows until it has been
+ * read, then notifies its data set observers so the list rebinds. Windows far from the current position are dropped,
+ * so memory stays flat however many contacts there are.
+ */
+public class PagedContactsCursor extends AbstractSnapshotCursor {
+
+	/** Rows read per window. */
+	public static final int WINDOW_ROWS = 200;
+	
+	//windows kept either side of the current one
+	private static final int WINDOWS_KEPT = 2;
+	
+	//rows from the edge of a window at which the next one is read ahead
+	private static final int PREFETCH_ROWS = WINDOW_ROWS / 4;
+	
+	//reads every window; one thread is enough as only the next window or the one jumped to is ever wanted
+	private static final ExecutorService PREFETCHER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "PagedContactsCursor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	private ContactsHelper _contactsHelper;
+	private int _count;
+	
+	//loaded windows by index, and those being read; guarded by _windows as windows are read on the prefetch thread
+	private HashMap<Integer, Page> _windows = new HashMap<Integer, Page>();
+	private HashSet<Integer> _reading = new HashSet<Integer>();
+	
+	//windows that placeholders were shown for, so observers are notified once they are read
+	private HashSet<Integer> _awaited = new HashSet<Integer>();
+	
+	//bumped by requery so windows read from stale data are discarded
+	private int _generation;
+	
+	//shown for a window until it is read, with a row for each of its positions
+	private Page _placeholder;
+	
+	//the window and row at the current position, and the window's index
+	private Page _window;
+	private int _row;
+	private int _index;
+	
+	//the list's observers, kept apart from those notified by requery so a window being read doesn't requery
+	private DataSetObservable _readObservers = new DataSetObservable();
+	
+	//cursors are made on background threads, but observers are notified on the main thread
+	private Handler _handler = new Handler(Looper.getMainLooper());
+	
+	private final Runnable _notifyRead = new Runnable() {
+		public void run() {
+			if (!isClosed()) _readObservers.notifyChanged();
+		}
+	};
+	
+	/**
+	 * @param count the number of contacts, from {@link ContactsHelper#countContacts()}
+	 * @param placeholderName shown as the name of each row of a window that is still being read
+	 */
+	public PagedContactsCursor(ContactsHelper contactsHelper, int count, String placeholderName) {
+		_contactsHelper = contactsHelper;
+		_count = count;
+		
+		ContactSnapshot placeholders = new ContactSnapshot(WINDOW_ROWS);
+		for (int row = 0; row < WINDOW_ROWS; row++) placeholders.add(0, 0, placeholderName, null, 0, null);
+		placeholders.build();
+		_placeholder = new Page(placeholders, null, 0, null, 0);
+	}
+	
+	@Override
+	public int getCount() {
+		return _count;
+	}
+	
+	@Override
+	public boolean onMove(int oldPosition, int newPosition) {
+		_index = newPosition / WINDOW_ROWS;
+		_row = newPosition % WINDOW_ROWS;
+		_window = getLoadedWindow(_index);
+		
+		if (_window == null) {
+			//a jump, e.g. from fast scroll; the list rebinds once the window has been read
+			_window = _placeholder;
+			read(_index, true);
+		} else if (!clampRow()) {
+			return false;
+		}
+		
+		if (newPosition > oldPosition && _row >= WINDOW_ROWS - PREFETCH_ROWS) read(_index + 1, false);
+		if (newPosition < oldPosition && _row < PREFETCH_ROWS) read(_index - 1, false);
+		evict(_index);
+		
+		return true;
+	}
+	
+	/**
+	 * Contacts were deleted since the count was taken; until the cursor is replaced with a new count, repeat the
+	 * window's last row rather than fail the move, which would crash the list.
+	 * @return false if the window has no rows at all
+	 */
+	private boolean clampRow() {
+		int rows = _window.snapshot.getCount();
+		if (_row < rows) return true;
+		
+		_row = rows - 1;
+		return rows > 0;
+	}
+	
+	@Override
+	public ContactSnapshot getSnapshot() {
+		if (_window == _placeholder) replacePlaceholder();
+		return _window.snapshot;
+	}
+	
+	@Override
+	public int getSnapshotRow() {
+		if (_window == _placeholder) replacePlaceholder();
+		return _row;
+	}
+	
+	/** @return false if the current row is a placeholder for a window that is still being read */
+	public boolean isLoaded() {
+		return getSnapshot() != _placeholder.snapshot;
+	}
+	
+	/** Switches to the current window once it has been read, as the list rebinds a row without moving to it again. */
+	private void replacePlaceholder() {
+		Page window = getLoadedWindow(_index);
+		if (window == null || window.snapshot.getCount() == 0) return;
+		
+		_window = window;
+		_row = getPosition() % WINDOW_ROWS;
+		clampRow();
+	}
+	
+	@Override
+	public void registerDataSetObserver(DataSetObserver observer) {
+		super.registerDataSetObserver(observer);
+		_readObservers.registerObserver(observer);
+	}
+	
+	@Override
+	public void unregisterDataSetObserver(DataSetObserver observer) {
+		super.unregisterDataSetObserver(observer);
+		_readObservers.unregisterObserver(observer);
+	}
+	
+	/** @return a cursor over just the display names of the contacts, in this cursor's order; queried on this thread */
+	public Cursor queryNames() {
+		return _contactsHelper.getNamesCursor();
+	}
+	
+	/** @return the window, or null if it isn't loaded */
+	private Page getLoadedWindow(int index) {
+		synchronized (_windows) {
+			return _windows.get(index);
+		}
+	}
+	
+	/**
+	 * Reads the window on the prefetch thread, unless it is loaded or already being read.
+	 * @param awaited whether placeholders are shown for it, so observers should be notified once it is read
+	 */
+	private void read(final int index, boolean awaited) {
+		if (index < 0 || index * WINDOW_ROWS >= _count) return;
+		
+		final int generation;
+		synchronized (_windows) {
+			if (_windows.containsKey(index)) return;
+			if (awaited) _awaited.add(index);
+			if (!_reading.add(index)) return;
+			generation = _generation;
+		}
+		
+		PREFETCHER.execute(new Runnable() {
+			public void run() {
+				readWindow(index, generation);
+			}
+		});
+	}
+	
+	/**
+	 * Reads the window holding the position on this thread if it isn't loaded, so it can be shown without
+	 * placeholders, e.g. the first window before the cursor is first shown. Not for the main thread.
+	 */
+	public void readWindowAt(int position) {
+		int index = position / WINDOW_ROWS;
+		int generation;
+		
+		synchronized (_windows) {
+			if (_windows.containsKey(index)) return;
+			_reading.add(index);
+			generation = _generation;
+		}
+		
+		readWindow(index, generation);
+	}
+	
+	/** Reads the window on this thread, keeping it unless the windows were dropped in the meantime. */
+	private void readWindow(int index, int generation) {
+		Page previous;
+		synchronized (_windows) {
+			if (generation != _generation) return;
+			previous = _windows.get(index - 1);
+		}
+		
+		Page window = _contactsHelper.readPage(previous, index * WINDOW_ROWS, WINDOW_ROWS);
+		
+		boolean awaited;
+		synchronized (_windows) {
+			if (generation != _generation) return;
+			
+			_reading.remove(index);
+			_windows.put(index, window);
+			awaited = _awaited.remove(index);
+		}
+		
+		if (awaited) _handler.post(_notifyRead);
+	}
+	
+	/** Drops windows too far from the current one to be needed soon. */
+	private void evict(int index) {
+		synchronized (_windows) {
+			Iterator<Integer> indexes = _windows.keySet().iterator();
+			while (indexes.hasNext()) {
+				if (Math.abs(indexes.next() - index) > WINDOWS_KEPT) indexes.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Drops every window, so rows are read afresh. The count isn't taken again, as that would query the provider on
+	 * the requerying thread; to pick up added or removed contacts, replace the cursor with one made in the background.
+	 */
+	@Override
+	public boolean requery() {
+		dropWindows();
+		return super.requery();
+	}
+	
+	@Override
+	public void close() {
+		dropWindows();
+		super.close();
+	}
+	
+	private void dropWindows() {
+		synchronized (_windows) {
+			_windows.clear();
+			_reading.clear();
+			_awaited.clear();
+			_generation++;
+		}
+	}
+	
+}
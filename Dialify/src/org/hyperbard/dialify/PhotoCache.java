@@ -0,0 +1,103 @@
+package org.hyperbard.dialify;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * A least-recently-used cache of contact photos keyed by person ID, bounded by the bytes held by its bitmaps.
+ * <p>
+ * Each photo is cached with a checksum of the data it was decoded from. The checksum of each person's current photo is
+ * kept apart from the bitmaps, as it is small enough to outlive their eviction. When photos may have changed the
+ * checksums are dropped rather than the bitmaps, so a photo is only decoded again if its data turns out to differ.
+ */
+public class PhotoCache {
+
+	private int _maxBytes;
+	private int _bytes;
+
+	//iterates from least to most recently used
+	private LinkedHashMap<Long, Bitmap> _photos = new LinkedHashMap<Long, Bitmap>(16, 0.75f, true);
+
+	//the checksum of the data each cached photo was decoded from
+	private HashMap<Long, Long> _decodedChecksums = new HashMap<Long, Long>();
+
+	//the checksum of each person's photo data as last read, dropped whenever photos may have changed
+	private HashMap<Long, Long> _checksums = new HashMap<Long, Long>();
+
+	//shared placeholder for people without a photo, which isn't counted against the budget
+	private Bitmap _placeholder;
+
+	public PhotoCache(int maxBytes) {
+		_maxBytes = maxBytes;
+	}
+
+	/** @return the cached photo if it was decoded from data with the given checksum, otherwise null */
+	public synchronized Bitmap get(long personId, long checksum) {
+		Long decoded = _decodedChecksums.get(personId);
+		if (decoded == null || decoded != checksum) return null;
+
+		return _photos.get(personId);
+	}
+
+	/** Caches the photo decoded from data with the given checksum, which is taken as the person's current one. */
+	public synchronized void put(long personId, long checksum, Bitmap photo) {
+		Bitmap previous = _photos.put(personId, photo);
+		if (previous != null) _bytes -= sizeOf(previous);
+		_bytes += sizeOf(photo);
+
+		_decodedChecksums.put(personId, checksum);
+		_checksums.put(personId, checksum);
+
+		//evict least recently used photos until we're back under budget
+		Iterator<Map.Entry<Long, Bitmap>> entries = _photos.entrySet().iterator();
+		while (_bytes > _maxBytes && entries.hasNext()) {
+			Map.Entry<Long, Bitmap> eldest = entries.next();
+			if (eldest.getKey() == personId) continue;
+
+			_bytes -= sizeOf(eldest.getValue());
+			_decodedChecksums.remove(eldest.getKey());
+			entries.remove();
+		}
+	}
+
+	/** @return the checksum of the person's photo data as last read, or null if it may have changed since */
+	public synchronized Long getChecksum(long personId) {
+		return _checksums.get(personId);
+	}
+
+	public synchronized void putChecksum(long personId, long checksum) {
+		_checksums.put(personId, checksum);
+	}
+
+	public synchronized Bitmap getPlaceholder() {
+		return _placeholder;
+	}
+
+	public synchronized void setPlaceholder(Bitmap placeholder) {
+		_placeholder = placeholder;
+	}
+
+	/** Drops every cached photo to free memory. */
+	public synchronized void clear() {
+		_photos.clear();
+		_decodedChecksums.clear();
+		_bytes = 0;
+	}
+
+	/**
+	 * Marks every person's photo as possibly changed, so its data is read again before it is next used. The bitmaps are
+	 * kept for those whose data turns out to be the same.
+	 */
+	public synchronized void invalidate() {
+		_checksums.clear();
+	}
+
+	private int sizeOf(Bitmap photo) {
+		return (photo == _placeholder) ? 0 : photo.getRowBytes() * photo.getHeight();
+	}
+
+}
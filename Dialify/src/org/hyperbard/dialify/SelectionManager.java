@@ -1,21 +1,25 @@
 package org.hyperbard.dialify;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+import org.hyperbard.dialify.DatabaseHelper.Operation;
 import org.hyperbard.dialify.DatabaseHelper.Selections;
 import org.hyperbard.dialify.NotificationHelper.NotificationType;
 
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 
 /**
  * Provides control of and information on notification selections.
+ * <p>
+ * Safe to use from any thread. Reads never lock: they see an immutable snapshot of the selections. Changes are
+ * serialized, and each one publishes its new snapshot only once its database write has completed.
  */
 public class SelectionManager {
 
@@ -37,15 +41,102 @@ public class SelectionManager {
 		}
 	};
 	
-	public static final int MAX_SELECTIONS = 10;
+	/** The number of selections allowed unless the user chooses otherwise. */
+	public static final int DEFAULT_MAX_SELECTIONS = 10;
 	
-	private int _numSelections;
+	/** The most selections the user can choose to allow; notification IDs are allocated below this. */
+	public static final int MAX_SELECTIONS_LIMIT = 500;
 	
-	/** created with size MAX_SELECTIONS, each position indicates whether that ID is in use */
-	private boolean[] _notificationIds;
+	//where the user's chosen limit is kept
+	private static final String PREFERENCES_NAME = "selections";
+	private static final String PREFERENCE_MAX_SELECTIONS = "max_selections";
 	
-	//maps contact IDs to their selections
-	private Map<Long, List<Selection>> _selections;
+	/**
+	 * An immutable view of every selection. Changes publish a new state rather than modifying this one, so readers on
+	 * any thread can use whichever state they get without locking.
+	 * <p>
+	 * Selections are keyed by contact ID through a sorted long[] searched with binary search, so lookups neither box
+	 * nor allocate.
+	 */
+	private static class State {
+		//contact IDs with selections in ascending order, and each one's selections; never modified once published
+		private long[] _contactIds;
+		private List<Selection>[] _selections;
+		
+		private int _numSelections;
+		
+		public State(long[] contactIds, List<Selection>[] selections, int numSelections) {
+			_contactIds = contactIds;
+			_selections = selections;
+			_numSelections = numSelections;
+		}
+		
+		/** @return a copy of this state with the given selections (possibly none) replacing the contact's */
+		@SuppressWarnings("unchecked")
+		public State withSelections(long contactId, List<Selection> selections) {
+			int index = Arrays.binarySearch(_contactIds, contactId);
+			boolean remove = selections.size() == 0;
+			
+			int numSelections = _numSelections + selections.size();
+			if (index >= 0) numSelections -= _selections[index].size();
+			
+			//work out where the contact sits in the new arrays and how their length changes
+			int size = _contactIds.length;
+			int newSize = size;
+			if (index < 0 && !remove) newSize++;
+			if (index >= 0 && remove) newSize--;
+			
+			long[] contactIds = new long[newSize];
+			List<Selection>[] lists = new List[newSize];
+			
+			if (index >= 0) {
+				//copy everything but the contact
+				System.arraycopy(_contactIds, 0, contactIds, 0, index);
+				System.arraycopy(_selections, 0, lists, 0, index);
+				
+				int after = index + (remove ? 0 : 1);
+				System.arraycopy(_contactIds, index + 1, contactIds, after, size - index - 1);
+				System.arraycopy(_selections, index + 1, lists, after, size - index - 1);
+			} else {
+				//copy everything, leaving a gap at the insertion point if the contact is being added
+				index = -(index + 1);
+				System.arraycopy(_contactIds, 0, contactIds, 0, index);
+				System.arraycopy(_selections, 0, lists, 0, index);
+				
+				int after = index + (remove ? 0 : 1);
+				System.arraycopy(_contactIds, index, contactIds, after, size - index);
+				System.arraycopy(_selections, index, lists, after, size - index);
+			}
+			
+			if (!remove) {
+				contactIds[index] = contactId;
+				lists[index] = Collections.unmodifiableList(selections);
+			}
+			
+			return new State(contactIds, lists, numSelections);
+		}
+		
+		/** @return the contact's selections, or null if there are none */
+		public List<Selection> get(long contactId) {
+			int index = Arrays.binarySearch(_contactIds, contactId);
+			return (index >= 0) ? _selections[index] : null;
+		}
+		
+		public boolean contains(long contactId) {
+			return Arrays.binarySearch(_contactIds, contactId) >= 0;
+		}
+	}
+	
+	//the current state; only replaced while holding _writeLock
+	private volatile State _state;
+	
+	//serializes changes so each database write and the state published for it happen as one step
+	private final Object _writeLock = new Object();
+	
+	//only used while holding _writeLock
+	private NotificationIdAllocator _notificationIds;
+	
+	private SharedPreferences _preferences;
 	
 	private DatabaseHelper _database;
 	
@@ -61,32 +152,21 @@ public class SelectionManager {
 	
 	public SelectionManager(Context context) {
 		_database = new DatabaseHelper(context);
+		_preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
 		loadSelections();
 	}
 
-	/** @return the next available notification ID */
-	private int getNextNotificationId() {
-		for (int i = 0; i < MAX_SELECTIONS; i++) if (!_notificationIds[i]) return i;
-		return -1;
-	}
-	
-	private void addSelection(Selection selection) {
-		if (!_selections.containsKey(selection.getContactId())) {
-			_selections.put(selection.getContactId(), new ArrayList<Selection>());
-		}
-		
-		_selections.get(selection.getContactId()).add(selection);
-		_numSelections++;
-		_notificationIds[selection.getNotificationId()] = true;
-	}
-	
+	@SuppressWarnings("unchecked")
 	private void loadSelections() {
-		_selections = new HashMap<Long, List<Selection>>();
-		_numSelections = 0;
-		_notificationIds = new boolean[MAX_SELECTIONS];
-		
 		Cursor cursor = _database.query(Selections.TABLE_NAME, PROJECTION_SELECTIONS, null, null, SORT_SELECTIONS);
 		
+		//rows are sorted by contact ID, so each contact's selections are adjacent
+		long[] contactIds = new long[cursor.getCount()];
+		List<Selection>[] selections = new List[cursor.getCount()];
+		int[] notificationIds = new int[cursor.getCount()];
+		int numContacts = 0;
+		int numSelections = 0;
+		
 		if (cursor.getCount() > 0) {
 			cursor.moveToFirst();
 			
@@ -94,115 +174,255 @@ public class SelectionManager {
 				int notificationId = cursor.getInt(0);
 				long contactId = cursor.getLong(1);
 				
-				String notificationType = cursor.getString(2);
-				NotificationType type = NotificationType.valueOf(notificationType);
+				//reserve every stored notification ID, even one whose selection is skipped below
+				notificationIds[cursor.getPosition()] = notificationId;
+				
+				//skip selections of types this version doesn't know
+				NotificationType type = NotificationType.forCode(cursor.getInt(2));
+				if (type == null) {
+					cursor.moveToNext();
+					continue;
+				}
+				
+				if (numContacts == 0 || contactIds[numContacts - 1] != contactId) {
+					contactIds[numContacts] = contactId;
+					selections[numContacts] = new ArrayList<Selection>();
+					numContacts++;
+				}
 				
-				Selection selection = new Selection(notificationId, contactId, type);
-				addSelection(selection);
+				selections[numContacts - 1].add(new Selection(notificationId, contactId, type));
+				numSelections++;
 				
 				cursor.moveToNext();
 			} while (!cursor.isAfterLast());
 		}
 		
 		cursor.close();
+		
+		long[] trimmedIds = new long[numContacts];
+		List<Selection>[] trimmedSelections = new List[numContacts];
+		
+		for (int i = 0; i < numContacts; i++) {
+			trimmedIds[i] = contactIds[i];
+			trimmedSelections[i] = Collections.unmodifiableList(selections[i]);
+		}
+		
+		//notification IDs are persisted with their selections, so they stay the same across restarts
+		_notificationIds = new NotificationIdAllocator(MAX_SELECTIONS_LIMIT, notificationIds);
+		_state = new State(trimmedIds, trimmedSelections, numSelections);
 	}
 	
 	/**
-	 * Assumes that you have made sure you are not attempting to exceed {@link SelectionManager#MAX_SELECTIONS}.
+	 * Assumes that you have made sure you are not attempting to exceed {@link SelectionManager#getMaxSelections()}.
 	 * {@link SelectionManager#getSelectionsForContactId(long)} will return selections in the order you set them.
-	 * @return the notification ID for the selection
+	 * @return the notification ID for the selection, or -1 if it couldn't be saved
 	 */
 	public int setSelection(long contactId, NotificationType type) {
-		//if the selection has already been made just return the existing notification ID
-		if (_selections.containsKey(contactId)) {
-			for (Selection selection : _selections.get(contactId)) {
-				if (selection.getType() == type) return selection.getNotificationId();
+		synchronized (_writeLock) {
+			State state = _state;
+			List<Selection> existing = state.get(contactId);
+			
+			//if the selection has already been made just return the existing notification ID
+			if (existing != null) {
+				for (Selection selection : existing) {
+					if (selection.getType() == type) return selection.getNotificationId();
+				}
 			}
+			
+			int notificationId = _notificationIds.allocate();
+			if (notificationId == -1) return -1;
+			
+			if (_database.insert(Selections.TABLE_NAME, valuesFor(notificationId, contactId, type)) == -1) {
+				_notificationIds.release(notificationId);
+				return -1;
+			}
+			
+			List<Selection> selections = new ArrayList<Selection>();
+			if (existing != null) selections.addAll(existing);
+			selections.add(new Selection(notificationId, contactId, type));
+			_state = state.withSelections(contactId, selections);
+			
+			return notificationId;
+		}
+	}
+	
+	/**
+	 * Replaces the contact's selections with one for each of the given types, in order, as a single database
+	 * transaction. Selections of types the contact already had keep their notification IDs, so their notifications
+	 * can be updated in place. Assumes that you have made sure you are not attempting to exceed
+	 * {@link SelectionManager#getMaxSelections()}; an empty list deletes the contact's selections.
+	 * @return the notification IDs for the selections in the order of the types, or null if they couldn't be saved,
+	 *         in which case the contact's selections are unchanged
+	 */
+	public int[] setSelections(long contactId, List<NotificationType> types) {
+		synchronized (_writeLock) {
+			State state = _state;
+			List<Selection> existing = state.get(contactId);
+			
+			List<Selection> selections = new ArrayList<Selection>(types.size());
+			List<Operation> operations = new ArrayList<Operation>(types.size() + 1);
+			int[] notificationIds = new int[types.size()];
+			
+			operations.add(Operation.delete(
+					Selections.TABLE_NAME,
+					Selections.COLUMN_CONTACT_ID + "=?",
+					new String[] { String.valueOf(contactId) }
+			));
+			
+			for (int i = 0; i < notificationIds.length; i++) {
+				NotificationType type = types.get(i);
+				
+				//reuse the notification ID of an existing selection of the same type
+				int notificationId = -1;
+				if (existing != null) {
+					for (Selection selection : existing) {
+						if (selection.getType() == type) notificationId = selection.getNotificationId();
+					}
+				}
+				if (notificationId == -1) notificationId = _notificationIds.allocate();
+				
+				if (notificationId == -1) {
+					releaseUnused(notificationIds, i, existing);
+					return null;
+				}
+				
+				notificationIds[i] = notificationId;
+				selections.add(new Selection(notificationId, contactId, type));
+				operations.add(Operation.insert(Selections.TABLE_NAME, valuesFor(notificationId, contactId, type)));
+			}
+			
+			if (!DatabaseHelper.succeeded(_database.apply(operations))) {
+				releaseUnused(notificationIds, notificationIds.length, existing);
+				return null;
+			}
+			
+			_state = state.withSelections(contactId, selections);
+			
+			//release the IDs of dropped selections
+			if (existing != null) {
+				for (Selection selection : existing) {
+					int notificationId = selection.getNotificationId();
+					if (indexOf(notificationIds, notificationIds.length, notificationId) < 0) {
+						_notificationIds.release(notificationId);
+					}
+				}
+			}
+			
+			return notificationIds;
+		}
+	}
+	
+	/** Releases the first count of the given IDs, other than those still held by the existing selections. */
+	private void releaseUnused(int[] notificationIds, int count, List<Selection> existing) {
+		for (int i = 0; i < count; i++) {
+			boolean held = false;
+			if (existing != null) {
+				for (Selection selection : existing) {
+					if (selection.getNotificationId() == notificationIds[i]) held = true;
+				}
+			}
+			
+			if (!held) _notificationIds.release(notificationIds[i]);
+		}
+	}
+	
+	private static int indexOf(int[] values, int count, int value) {
+		for (int i = 0; i < count; i++) {
+			if (values[i] == value) return i;
 		}
 		
-		int notificationId = getNextNotificationId();
-		
+		return -1;
+	}
+	
+	private static ContentValues valuesFor(int notificationId, long contactId, NotificationType type) {
 		ContentValues values = new ContentValues();
 		values.put(Selections.COLUMN_CONTACT_ID, contactId);
-		values.put(Selections.COLUMN_NOTIFICATION_TYPE, type.toString());
+		values.put(Selections.COLUMN_NOTIFICATION_TYPE, type.getCode());
 		values.put(Selections.COLUMN_NOTIFICATION_ID, notificationId);
-		
-		_database.insert(Selections.TABLE_NAME, values);
-		
-		Selection selection = new Selection(notificationId, contactId, type);
-		addSelection(selection);
-		
-		return notificationId;
+		return values;
 	}
 	
 	/** @return the number of selections deleted */
 	public long deleteSelectionsForContact(long contactId) {
-		if (!_selections.containsKey(contactId)) return 0;
-		
-		//reclaim the notification IDs
-		for (Selection selection : _selections.get(contactId)) _notificationIds[selection.getNotificationId()] = false;
-		
-		int removed = _selections.get(contactId).size();
-		_selections.remove(contactId);
-		_numSelections -= removed;
-		
-		if (removed > 0) {
+		synchronized (_writeLock) {
+			State state = _state;
+			List<Selection> existing = state.get(contactId);
+			if (existing == null) return 0;
+			
 			_database.delete(
 					Selections.TABLE_NAME,
 					Selections.COLUMN_CONTACT_ID + "=?",
 					new String[] { String.valueOf(contactId) }
 			);
+			
+			_state = state.withSelections(contactId, new ArrayList<Selection>());
+			for (Selection selection : existing) _notificationIds.release(selection.getNotificationId());
+			
+			return existing.size();
 		}
-		
-		return removed;
 	}
 	
 	/** @return an unmodifiable list of selections for the given contact, or null if none exist */
 	public List<Selection> getSelectionsForContactId(long contactId) {
-		if (!_selections.containsKey(contactId)) return null;
-		return Collections.unmodifiableList(_selections.get(contactId));
+		return _state.get(contactId);
 	}
 	
-	/** @return a list of contact IDs that have selections */
-	public List<Long> getContactIdsInUse() {
-		List<Long> contactIds = new ArrayList<Long>();
-		
-		for (long contactId : _selections.keySet()) {
-			if (_selections.get(contactId).size() > 0) contactIds.add(contactId);
-		}
-		
-		return contactIds;
+	/** @return the IDs of contacts that have selections, in ascending order */
+	public long[] getContactIdsInUse() {
+		return _state._contactIds.clone();
 	}
 	
 	public int getNumSelections() {
-		return _numSelections;
+		return _state._numSelections;
 	}
 	
 	public int getNumSelectionsForContact(long contactId) {
-		if (!_selections.containsKey(contactId)) return 0;
-		return _selections.get(contactId).size();
+		List<Selection> selections = _state.get(contactId);
+		return (selections != null) ? selections.size() : 0;
 	}
 	
-	public List<Integer> getNotificationIdsForContact(long contactId) {
-		ArrayList<Integer> ids = new ArrayList<Integer>();
+	public int[] getNotificationIdsForContact(long contactId) {
+		List<Selection> selections = _state.get(contactId);
+		if (selections == null) return new int[0];
 		
-		if (_selections.containsKey(contactId)) {
-			for (Selection selection : _selections.get(contactId)) {
-				ids.add(selection.getNotificationId());
-			}
-		}
+		int[] ids = new int[selections.size()];
+		for (int i = 0; i < ids.length; i++) ids[i] = selections.get(i).getNotificationId();
 		
 		return ids;
 	}
 	
 	/** @return true if the current number of selections plus the provided delta would exceed the maximum allowed */
 	public boolean wouldExceedMaxSelections(int delta) {
-		return _numSelections + delta > MAX_SELECTIONS;
+		return _state._numSelections + delta > getMaxSelections();
+	}
+	
+	/**
+	 * @return one past the highest notification ID that selections are likely to have used, including those left by
+	 *         an earlier process
+	 */
+	public int getNotificationIdLimit() {
+		synchronized (_writeLock) {
+			return Math.max(getMaxSelections(), _notificationIds.getHighWater());
+		}
+	}
+	
+	/** @return the number of selections the user allows, at most {@link #MAX_SELECTIONS_LIMIT} */
+	public int getMaxSelections() {
+		return _preferences.getInt(PREFERENCE_MAX_SELECTIONS, DEFAULT_MAX_SELECTIONS);
+	}
+	
+	/**
+	 * Sets the number of selections allowed. Lowering it below the current number of selections keeps them all but
+	 * prevents new ones until enough are deleted.
+	 */
+	public void setMaxSelections(int maxSelections) {
+		maxSelections = Math.max(1, Math.min(maxSelections, MAX_SELECTIONS_LIMIT));
+		_preferences.edit().putInt(PREFERENCE_MAX_SELECTIONS, maxSelections).commit();
 	}
 	
-	/** @return true if any selections are set for the given contact ID */
+	/** @return true if any selections are set for the given contact ID; doesn't allocate, so is cheap enough to bind */
 	public boolean isSelected(long contactId) {
-		return _selections.containsKey(contactId) && _selections.get(contactId).size() > 0;
+		return _state.contains(contactId);
 	}
 	
 }
@@ -0,0 +1,49 @@
+package org.hyperbard.dialify;
+
+import org.hyperbard.dialify.ContactsHelper.Sort;
+
+/**
+ * A read-only cursor over some or all of the rows of a {@link ContactSnapshot}.
+ * <p>
+ * The cursor stays on its snapshot: requerying never reloads, as that would read every contact on whichever thread
+ * requeried, usually the main thread. To pick up changes, watch {@link ContactsHelper#SNAPSHOT_URI} and replace the
+ * cursor with a new one created on a background thread.
+ */
+public class SnapshotCursor extends AbstractSnapshotCursor {
+
+	/** Chooses the rows a cursor covers. */
+	public interface RowSelector {
+		/** @return the rows to cover in ascending order, or null for every row */
+		int[] selectRows(ContactSnapshot snapshot);
+	}
+
+	private ContactSnapshot _snapshot;
+	private Sort _sort;
+
+	//snapshot rows covered by the cursor in ascending order, or null for all rows
+	private int[] _rows;
+
+	/** @param selector chooses the rows to cover; if null, every row is covered */
+	public SnapshotCursor(ContactSnapshot snapshot, RowSelector selector, Sort sort) {
+		_snapshot = snapshot;
+		_sort = sort;
+		_rows = (selector != null) ? selector.selectRows(snapshot) : null;
+	}
+
+	@Override
+	public int getSnapshotRow() {
+		int index = (_sort == Sort.DESC) ? getCount() - 1 - mPos : mPos;
+		return (_rows != null) ? _rows[index] : index;
+	}
+
+	@Override
+	public ContactSnapshot getSnapshot() {
+		return _snapshot;
+	}
+
+	@Override
+	public int getCount() {
+		return (_rows != null) ? _rows.length : _snapshot.getCount();
+	}
+
+}
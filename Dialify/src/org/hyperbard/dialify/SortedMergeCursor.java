@@ -0,0 +1,127 @@
+package org.hyperbard.dialify;
+
+import java.util.Comparator;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+/**
+ * Merges cursors that are each sorted by the same order into one cursor in that order, without copying their rows.
+ * <p>
+ * Moving forward costs one comparison per merged cursor. Moving backward restarts the merge from the first row, so
+ * it is meant for cursors read front to back (e.g. into a {@link ContactSnapshot}).
+ */
+public class SortedMergeCursor extends AbstractCursor {
+
+	private Cursor[] _cursors;
+
+	//compares the current rows of two of the merged cursors
+	private Comparator<Cursor> _order;
+
+	//the cursor holding the row at _position, or null before the first row and after the last
+	private Cursor _current;
+	private int _position = -1;
+
+	public SortedMergeCursor(Cursor[] cursors, Comparator<Cursor> order) {
+		_cursors = cursors;
+		_order = order;
+		reset();
+	}
+
+	/** Moves back to before the first row. */
+	private void reset() {
+		for (Cursor cursor : _cursors) cursor.moveToFirst();
+		_current = null;
+		_position = -1;
+	}
+
+	/** Moves on to the next row of the merge. */
+	private void advance() {
+		if (_current != null) _current.moveToNext();
+
+		_current = null;
+		for (Cursor cursor : _cursors) {
+			if (cursor.isAfterLast()) continue;
+			if (_current == null || _order.compare(cursor, _current) < 0) _current = cursor;
+		}
+
+		_position++;
+	}
+
+	@Override
+	public boolean onMove(int oldPosition, int newPosition) {
+		if (newPosition < _position) reset();
+		while (_position < newPosition && (_position < 0 || _current != null)) advance();
+		return _current != null;
+	}
+
+	@Override
+	public int getCount() {
+		int count = 0;
+		for (Cursor cursor : _cursors) count += cursor.getCount();
+		return count;
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return _cursors[0].getColumnNames();
+	}
+
+	@Override
+	public String getString(int column) {
+		return _current.getString(column);
+	}
+
+	@Override
+	public short getShort(int column) {
+		return _current.getShort(column);
+	}
+
+	@Override
+	public int getInt(int column) {
+		return _current.getInt(column);
+	}
+
+	@Override
+	public long getLong(int column) {
+		return _current.getLong(column);
+	}
+
+	@Override
+	public float getFloat(int column) {
+		return _current.getFloat(column);
+	}
+
+	@Override
+	public double getDouble(int column) {
+		return _current.getDouble(column);
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		return _current.isNull(column);
+	}
+
+	@Override
+	public void deactivate() {
+		for (Cursor cursor : _cursors) cursor.deactivate();
+		super.deactivate();
+	}
+
+	@Override
+	public void close() {
+		for (Cursor cursor : _cursors) cursor.close();
+		super.close();
+	}
+
+	@Override
+	public boolean requery() {
+		for (Cursor cursor : _cursors) {
+			if (!cursor.requery()) return false;
+		}
+
+		reset();
+		return super.requery();
+	}
+
+}
@@ -6,19 +6,20 @@ import android.content.Intent;
 
 /**
  * Recreates selected notifications at startup.
+ * <p>
+ * Boot is when the device's storage is busiest, so notifications are restored from the file saved by
+ * {@link NotificationHelper#saveNotifications()} without reading the database or the contacts provider. Checking them
+ * against the provider is left to {@link ContactsWatcherService} once things have settled down.
  */
 public class StartupIntentReceiver extends BroadcastReceiver {
 	
 	@Override
 	public void onReceive(Context context, Intent intent) {
 		//recreate notifications
-		NotificationCleaner cleaner = new NotificationCleaner(
-				new ContactsHelper(context),
-				new SelectionManager(context),
-				new NotificationHelper(context)
-		);
+		boolean restored = DialifyApplication.get(context).getNotificationHelper().restoreNotifications();
 		
-		cleaner.clean();
+		//then bring them up to date, and keep them that way as contacts change
+		ContactsWatcherService.startAfterBoot(context, restored);
 	}
 	
 }
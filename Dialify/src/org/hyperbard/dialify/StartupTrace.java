@@ -0,0 +1,30 @@
+package org.hyperbard.dialify;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Logs how long the steps of starting {@link Dialify} take, measured from when its activity was created.
+ * <p>
+ * Off unless enabled with <code>adb shell setprop log.tag.DialifyStartup DEBUG</code>, so it costs a single check
+ * per step otherwise.
+ */
+public class StartupTrace {
+
+	private static final String TAG = "DialifyStartup";
+
+	private static long _start;
+
+	/** Starts timing from now. */
+	public static void start() {
+		_start = SystemClock.uptimeMillis();
+		mark("start");
+	}
+
+	/** Logs the time since {@link #start()} that the named step was reached. */
+	public static void mark(String step) {
+		if (!Log.isLoggable(TAG, Log.DEBUG)) return;
+		Log.d(TAG, step + " +" + (SystemClock.uptimeMillis() - _start) + "ms");
+	}
+
+}
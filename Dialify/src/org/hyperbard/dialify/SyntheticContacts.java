@@ -0,0 +1,298 @@
+package org.hyperbard.dialify;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.hyperbard.dialify.SyntheticContactsProvider.PeopleTable;
+import org.hyperbard.dialify.SyntheticContactsProvider.PhonesTable;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Bitmap;
+import android.provider.Contacts.Phones;
+
+/**
+ * Generates the contacts served by {@link SyntheticContactsProvider}, and changes them as a sync would.
+ * <p>
+ * Contacts are shaped like a real address book rather than uniformly: a few surnames are far more common than the
+ * rest, most people have one phone, some names are lower case, accented or start with a digit, one phone in ten has
+ * a custom label, and about a third of people have a photo. The same seed always generates the same contacts, and the
+ * same sequence of churn from them, so runs can be compared.
+ */
+public class SyntheticContacts {
+
+	//in order of popularity; picked with SKEW so the first few dominate, as the most common names do
+	private static final String[] FIRST_NAMES = {
+		"James", "Mary", "John", "Patricia", "Robert", "Jennifer", "Michael", "Linda", "William", "Elizabeth", "David",
+		"Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Charles", "Karen", "Zo\u00eb",
+		"\u00c9mile", "Bj\u00f6rn", "Fran\u00e7ois", "Siobh\u00e1n", "Ng\u1ecdc"
+	};
+
+	private static final String[] LAST_NAMES = {
+		"Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+		"Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin",
+		"O'Brien", "van der Berg", "M\u00fcller", "\u00c5str\u00f6m", "Nguyen", "de la Cruz"
+	};
+
+	//names of businesses and services, which sort before the letters or don't follow the "first last" pattern
+	private static final String[] OTHER_NAMES = {
+		"#1 Pizza", "1-800-Flowers", "(Voicemail)", "24h Locksmith", "ICE Mum", "zz Old Work", "Dr. Patel", "..."
+	};
+
+	private static final String[] CUSTOM_LABELS = { "Work mobile", "Boat", "Cabin", "Satellite", "Old number" };
+
+	private static final double SKEW = 3;
+
+	//one phone in this many has a custom label, and one person in this many has an unusual name
+	private static final int CUSTOM_LABEL_ONE_IN = 10;
+	private static final int OTHER_NAME_ONE_IN = 30;
+	private static final int LOWER_CASE_ONE_IN = 20;
+
+	//photos are picked from a few solid colours, compressed once
+	private static final int PHOTO_SIZE = 96;
+	private static final int PHOTO_ONE_IN = 3;
+	private static final int[] PHOTO_COLORS = {
+		0xffe57373, 0xfff06292, 0xffba68c8, 0xff7986cb, 0xff4fc3f7, 0xff4db6ac, 0xffaed581, 0xffffd54f, 0xffff8a65
+	};
+
+	//settings
+	private static final String PREFERENCES_NAME = "synthetic_contacts";
+	private static final String PREFERENCE_SEED = "seed";
+	private static final String PREFERENCE_CHURN_RUNS = "churn_runs";
+	private static final String PREFERENCE_LATENCY_MILLIS = "latency_millis";
+
+	private SQLiteDatabase _db;
+	private Random _random;
+	private byte[][] _photos;
+
+	private SyntheticContacts(Context context, long seed) {
+		_db = SyntheticContactsProvider.getDatabase(context);
+		_random = new Random(seed);
+	}
+
+	/**
+	 * Replaces the synthetic contacts with newly generated ones and notifies observers.
+	 * @param people the number of people to generate, each with one or more phones
+	 */
+	public static void generate(Context context, int people, long seed) {
+		getPreferences(context).edit()
+			.putLong(PREFERENCE_SEED, seed)
+			.putInt(PREFERENCE_CHURN_RUNS, 0)
+			.commit();
+
+		new SyntheticContacts(context, seed).generate(people);
+		context.getContentResolver().notifyChange(SyntheticContactsProvider.CONTENT_URI, null);
+	}
+
+	/**
+	 * Makes the given number of random changes to the synthetic contacts, in one transaction as a sync would, and
+	 * notifies observers. Changes rename people, change numbers and photos, and add and delete phones and people.
+	 */
+	public static void churn(Context context, int changes) {
+		SharedPreferences preferences = getPreferences(context);
+		int runs = preferences.getInt(PREFERENCE_CHURN_RUNS, 0);
+		preferences.edit().putInt(PREFERENCE_CHURN_RUNS, runs + 1).commit();
+
+		//each run follows on from the last, so the same sequence of runs always makes the same changes
+		long seed = preferences.getLong(PREFERENCE_SEED, 0) + 31 * (runs + 1);
+		new SyntheticContacts(context, seed).churn(changes);
+		context.getContentResolver().notifyChange(SyntheticContactsProvider.CONTENT_URI, null);
+	}
+
+	/** @return how long every query of the synthetic contacts is delayed, in milliseconds */
+	public static int getLatencyMillis(Context context) {
+		return getPreferences(context).getInt(PREFERENCE_LATENCY_MILLIS, 0);
+	}
+
+	public static void setLatencyMillis(Context context, int latencyMillis) {
+		getPreferences(context).edit().putInt(PREFERENCE_LATENCY_MILLIS, Math.max(0, latencyMillis)).commit();
+	}
+
+	private static SharedPreferences getPreferences(Context context) {
+		return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+	}
+
+	private void generate(int people) {
+		SQLiteStatement insertPerson = compileInsertPerson();
+		SQLiteStatement insertPhone = compileInsertPhone();
+
+		_db.beginTransaction();
+		try {
+			_db.delete(PhonesTable.TABLE_NAME, null, null);
+			_db.delete(PeopleTable.TABLE_NAME, null, null);
+
+			for (int person = 0; person < people; person++) {
+				String name = nextName();
+				long personId = insertPerson(insertPerson, name);
+
+				//most people have one phone, a few have up to four
+				int phones = (_random.nextInt(10) < 6) ? 1 : 1 + _random.nextInt(4);
+				for (int phone = 0; phone < phones; phone++) insertPhone(insertPhone, personId, name);
+			}
+
+			_db.setTransactionSuccessful();
+		} finally {
+			_db.endTransaction();
+			insertPerson.close();
+			insertPhone.close();
+		}
+	}
+
+	private void churn(int changes) {
+		SQLiteStatement insertPerson = compileInsertPerson();
+		SQLiteStatement insertPhone = compileInsertPhone();
+
+		_db.beginTransaction();
+		try {
+			long maxPersonId = maxId(PeopleTable.TABLE_NAME, PeopleTable.COLUMN_ID);
+			long maxPhoneId = maxId(PhonesTable.TABLE_NAME, Phones._ID);
+
+			for (int change = 0; change < changes; change++) {
+				//IDs may have been deleted, in which case the change does nothing, as a sync's sometimes do
+				String personId = String.valueOf(1 + (long)(_random.nextDouble() * maxPersonId));
+				String phoneId = String.valueOf(1 + (long)(_random.nextDouble() * maxPhoneId));
+
+				switch (_random.nextInt(10)) {
+				case 0: case 1: case 2: case 3:
+					String name = nextName();
+					_db.execSQL(
+							"UPDATE " + PeopleTable.TABLE_NAME + " SET " + PeopleTable.COLUMN_NAME + "=?"
+							+ " WHERE " + PeopleTable.COLUMN_ID + "=?",
+							new Object[] { name, personId });
+					_db.execSQL(
+							"UPDATE " + PhonesTable.TABLE_NAME + " SET " + Phones.DISPLAY_NAME + "=?"
+							+ " WHERE " + Phones.PERSON_ID + "=?",
+							new Object[] { name, personId });
+					break;
+				case 4: case 5:
+					_db.execSQL(
+							"UPDATE " + PhonesTable.TABLE_NAME + " SET " + Phones.NUMBER + "=?"
+							+ " WHERE " + Phones._ID + "=?",
+							new Object[] { nextNumber(), phoneId });
+					break;
+				case 6:
+					_db.execSQL(
+							"UPDATE " + PeopleTable.TABLE_NAME + " SET " + PeopleTable.COLUMN_PHOTO + "=?"
+							+ " WHERE " + PeopleTable.COLUMN_ID + "=?",
+							new Object[] { nextPhoto(), personId });
+					break;
+				case 7:
+					_db.delete(PhonesTable.TABLE_NAME, Phones._ID + "=?", new String[] { phoneId });
+					break;
+				default:
+					String newName = nextName();
+					insertPhone(insertPhone, insertPerson(insertPerson, newName), newName);
+					break;
+				}
+			}
+
+			_db.setTransactionSuccessful();
+		} finally {
+			_db.endTransaction();
+			insertPerson.close();
+			insertPhone.close();
+		}
+	}
+
+	private long maxId(String tableName, String idColumn) {
+		SQLiteStatement max = _db.compileStatement("SELECT ifnull(max(" + idColumn + "),0) FROM " + tableName);
+		try {
+			return max.simpleQueryForLong();
+		} finally {
+			max.close();
+		}
+	}
+
+	private SQLiteStatement compileInsertPerson() {
+		return _db.compileStatement(
+				"INSERT INTO " + PeopleTable.TABLE_NAME + " ("
+				+ PeopleTable.COLUMN_NAME + ","
+				+ PeopleTable.COLUMN_PHOTO
+				+ ") VALUES (?,?)");
+	}
+
+	private SQLiteStatement compileInsertPhone() {
+		return _db.compileStatement(
+				"INSERT INTO " + PhonesTable.TABLE_NAME + " ("
+				+ Phones.PERSON_ID + ","
+				+ Phones.DISPLAY_NAME + ","
+				+ Phones.TYPE + ","
+				+ Phones.LABEL + ","
+				+ Phones.NUMBER
+				+ ") VALUES (?,?,?,?,?)");
+	}
+
+	/** @return the new person's ID */
+	private long insertPerson(SQLiteStatement insert, String name) {
+		insert.bindString(1, name);
+
+		byte[] photo = (_random.nextInt(PHOTO_ONE_IN) == 0) ? nextPhoto() : null;
+		if (photo != null) {
+			insert.bindBlob(2, photo);
+		} else {
+			insert.bindNull(2);
+		}
+
+		return insert.executeInsert();
+	}
+
+	private void insertPhone(SQLiteStatement insert, long personId, String name) {
+		insert.bindLong(1, personId);
+		insert.bindString(2, name);
+
+		if (_random.nextInt(CUSTOM_LABEL_ONE_IN) == 0) {
+			insert.bindLong(3, Phones.TYPE_CUSTOM);
+			insert.bindString(4, pick(CUSTOM_LABELS));
+		} else {
+			//mobiles are the most common, then home and work numbers
+			int type = _random.nextInt(20);
+			insert.bindLong(3,
+					(type < 10) ? Phones.TYPE_MOBILE
+					: (type < 15) ? Phones.TYPE_HOME
+					: (type < 19) ? Phones.TYPE_WORK
+					: Phones.TYPE_OTHER);
+			insert.bindNull(4);
+		}
+
+		insert.bindString(5, nextNumber());
+		insert.executeInsert();
+	}
+
+	private String nextName() {
+		if (_random.nextInt(OTHER_NAME_ONE_IN) == 0) return OTHER_NAMES[_random.nextInt(OTHER_NAMES.length)];
+
+		String name = pick(FIRST_NAMES) + " " + pick(LAST_NAMES);
+		return (_random.nextInt(LOWER_CASE_ONE_IN) == 0) ? name.toLowerCase() : name;
+	}
+
+	private String nextNumber() {
+		return String.format("555-%03d-%04d", _random.nextInt(1000), _random.nextInt(10000));
+	}
+
+	/** @return the compressed data of a random photo */
+	private byte[] nextPhoto() {
+		if (_photos == null) {
+			_photos = new byte[PHOTO_COLORS.length][];
+
+			for (int i = 0; i < _photos.length; i++) {
+				Bitmap bitmap = Bitmap.createBitmap(PHOTO_SIZE, PHOTO_SIZE, Bitmap.Config.RGB_565);
+				bitmap.eraseColor(PHOTO_COLORS[i]);
+
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				bitmap.compress(Bitmap.CompressFormat.PNG, 100, bytes);
+				bitmap.recycle();
+				_photos[i] = bytes.toByteArray();
+			}
+		}
+
+		return _photos[_random.nextInt(_photos.length)];
+	}
+
+	/** @return an element of the array, skewed towards the first */
+	private String pick(String[] values) {
+		return values[(int)(Math.pow(_random.nextDouble(), SKEW) * values.length)];
+	}
+
+}
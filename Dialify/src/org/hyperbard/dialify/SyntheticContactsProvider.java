@@ -0,0 +1,159 @@
+package org.hyperbard.dialify;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.Contacts.Phones;
+import android.provider.Contacts.Photos;
+
+/**
+ * Serves the contacts generated by {@link SyntheticContacts} in the shape of the device's contacts provider, so the
+ * app can be load tested at any address book size without touching real contacts. Used when the process's
+ * {@link ContactSource} is {@link ContactSource#SYNTHETIC}.
+ * <p>
+ * Only the phones and people's photos are served, read-only. Every query can be delayed to simulate a slow provider;
+ * see {@link SyntheticContacts#setLatencyMillis(Context, int)}.
+ */
+public class SyntheticContactsProvider extends ContentProvider {
+
+	public static final String AUTHORITY = "org.hyperbard.dialify.synthetic";
+
+	/** Notified whenever the synthetic contacts are regenerated or churned. */
+	public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+	public static final Uri PHONES_URI = Uri.withAppendedPath(CONTENT_URI, "phones");
+	public static final Uri PEOPLE_URI = Uri.withAppendedPath(CONTENT_URI, "people");
+
+	/** Contains constants related to the phones table, which mirrors {@link Phones}. */
+	static class PhonesTable {
+		static final String TABLE_NAME = "phones";
+	}
+
+	/** Contains constants related to the people table. */
+	static class PeopleTable {
+		static final String TABLE_NAME = "people";
+		static final String COLUMN_ID = "_id";
+		static final String COLUMN_NAME = "name";
+		/** The person's photo as compressed image data, or null if they have none. */
+		static final String COLUMN_PHOTO = "photo";
+	}
+
+	//database identification
+	private static final String DATABASE_NAME = "synthetic.db";
+	private static final int DATABASE_VERSION = 1;
+
+	//URI matching
+	private static final int PHONES = 1;
+	private static final int PERSON_PHOTO = 2;
+
+	private static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
+
+	static {
+		URI_MATCHER.addURI(AUTHORITY, "phones", PHONES);
+		URI_MATCHER.addURI(AUTHORITY, "people/#/photo", PERSON_PHOTO);
+	}
+
+	//shared with SyntheticContacts, which writes to the database directly as that's far faster for whole address books
+	private static OpenHelper _openHelper;
+
+	private static class OpenHelper extends SQLiteOpenHelper {
+
+		public OpenHelper(Context context) {
+			super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			db.execSQL(
+				"CREATE TABLE " + PeopleTable.TABLE_NAME + " ("
+					+ PeopleTable.COLUMN_ID + " INTEGER PRIMARY KEY,"
+					+ PeopleTable.COLUMN_NAME + " TEXT,"
+					+ PeopleTable.COLUMN_PHOTO + " BLOB"
+				+ ");");
+
+			//names are copied into the phones so they can be queried as the real provider's are, without a join
+			db.execSQL(
+				"CREATE TABLE " + PhonesTable.TABLE_NAME + " ("
+					+ Phones._ID + " INTEGER PRIMARY KEY,"
+					+ Phones.PERSON_ID + " INTEGER,"
+					+ Phones.DISPLAY_NAME + " TEXT,"
+					+ Phones.TYPE + " INTEGER,"
+					+ Phones.LABEL + " TEXT,"
+					+ Phones.NUMBER + " TEXT"
+				+ ");");
+
+			db.execSQL(
+				"CREATE INDEX " + PhonesTable.TABLE_NAME + "_" + Phones.PERSON_ID
+				+ " ON " + PhonesTable.TABLE_NAME + " (" + Phones.PERSON_ID + ");");
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		}
+	}
+
+	/** @return the database holding the synthetic contacts */
+	static synchronized SQLiteDatabase getDatabase(Context context) {
+		if (_openHelper == null) _openHelper = new OpenHelper(context.getApplicationContext());
+		return _openHelper.getWritableDatabase();
+	}
+
+	@Override
+	public boolean onCreate() {
+		return true;
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		int latencyMillis = SyntheticContacts.getLatencyMillis(getContext());
+		if (latencyMillis > 0) SystemClock.sleep(latencyMillis);
+
+		SQLiteDatabase db = getDatabase(getContext());
+		Cursor cursor;
+
+		switch (URI_MATCHER.match(uri)) {
+		case PHONES:
+			cursor = db.query(PhonesTable.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+			break;
+		case PERSON_PHOTO:
+			cursor = db.query(
+					PeopleTable.TABLE_NAME,
+					new String[] { PeopleTable.COLUMN_PHOTO + " AS " + Photos.DATA },
+					PeopleTable.COLUMN_ID + "=?",
+					new String[] { uri.getPathSegments().get(1) },
+					null, null, null);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		cursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+		return cursor;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		return null;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		throw new UnsupportedOperationException("Synthetic contacts are read-only");
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException("Synthetic contacts are read-only");
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException("Synthetic contacts are read-only");
+	}
+
+}
@@ -0,0 +1,51 @@
+package org.hyperbard.dialify;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Controls synthetic contacts in debuggable builds, from a script via adb, e.g.
+ * <pre>
+ * adb shell am broadcast -a org.hyperbard.dialify.SYNTHETIC_CONTACTS \
+ *     --ei people 50000 --ei seed 7 --ei latency 40 -e source synthetic
+ * adb shell am broadcast -a org.hyperbard.dialify.SYNTHETIC_CONTACTS --ei churn 200
+ * </pre>
+ * Every extra is optional. They are applied in this order:
+ * <ul>
+ * <li>{@link #EXTRA_LATENCY}: milliseconds to delay every query of the synthetic contacts by, 0 for none</li>
+ * <li>{@link #EXTRA_PEOPLE}: regenerates the synthetic contacts with this many people, from {@link #EXTRA_SEED} (0
+ * if not given)</li>
+ * <li>{@link #EXTRA_CHURN}: makes this many random changes to the synthetic contacts</li>
+ * <li>{@link #EXTRA_SOURCE}: "synthetic" or "device", the {@link ContactSource} to read contacts from; the process is
+ * restarted if it changes</li>
+ * </ul>
+ * Generating and churning happen in {@link SyntheticContactsService}, as they can take longer than a receiver may.
+ */
+public class SyntheticContactsReceiver extends BroadcastReceiver {
+
+	public static final String EXTRA_LATENCY = "latency";
+	public static final String EXTRA_PEOPLE = "people";
+	public static final String EXTRA_SEED = "seed";
+	public static final String EXTRA_CHURN = "churn";
+	public static final String EXTRA_SOURCE = "source";
+
+	public static final String SOURCE_SYNTHETIC = "synthetic";
+	public static final String SOURCE_DEVICE = "device";
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		//anything could send this, so only test builds listen
+		if (!ContactSource.isDebuggable(context)) return;
+
+		if (intent.hasExtra(EXTRA_LATENCY)) {
+			SyntheticContacts.setLatencyMillis(context, intent.getIntExtra(EXTRA_LATENCY, 0));
+		}
+
+		if (intent.hasExtra(EXTRA_PEOPLE) || intent.hasExtra(EXTRA_CHURN) || intent.hasExtra(EXTRA_SOURCE)) {
+			intent.setClass(context, SyntheticContactsService.class);
+			context.startService(intent);
+		}
+	}
+
+}
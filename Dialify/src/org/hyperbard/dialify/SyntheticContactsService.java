@@ -0,0 +1,54 @@
+package org.hyperbard.dialify;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Generates and churns synthetic contacts, and switches the {@link ContactSource}, as requested through
+ * {@link SyntheticContactsReceiver}. Requests are handled one at a time in the order they were made.
+ */
+public class SyntheticContactsService extends IntentService {
+
+	private static final String TAG = "SyntheticContacts";
+
+	public SyntheticContactsService() {
+		super(TAG);
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		if (!ContactSource.isDebuggable(this)) return;
+
+		if (intent.hasExtra(SyntheticContactsReceiver.EXTRA_PEOPLE)) {
+			int people = intent.getIntExtra(SyntheticContactsReceiver.EXTRA_PEOPLE, 0);
+			int seed = intent.getIntExtra(SyntheticContactsReceiver.EXTRA_SEED, 0);
+
+			long start = System.currentTimeMillis();
+			SyntheticContacts.generate(this, people, seed);
+			Log.i(TAG, "generated " + people + " people from seed " + seed
+					+ " in " + (System.currentTimeMillis() - start) + "ms");
+		}
+
+		if (intent.hasExtra(SyntheticContactsReceiver.EXTRA_CHURN)) {
+			int changes = intent.getIntExtra(SyntheticContactsReceiver.EXTRA_CHURN, 0);
+
+			long start = System.currentTimeMillis();
+			SyntheticContacts.churn(this, changes);
+			Log.i(TAG, "made " + changes + " changes in " + (System.currentTimeMillis() - start) + "ms");
+		}
+
+		if (intent.hasExtra(SyntheticContactsReceiver.EXTRA_SOURCE)) {
+			String source = intent.getStringExtra(SyntheticContactsReceiver.EXTRA_SOURCE);
+			boolean synthetic = SyntheticContactsReceiver.SOURCE_SYNTHETIC.equals(source);
+
+			//every helper and observer in the process is bound to the old source, so start again
+			if (ContactSource.set(this, synthetic)) {
+				Log.i(TAG, "switched to " + source + " contacts, restarting");
+				Process.killProcess(Process.myPid());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+package org.hyperbard.dialify.tests;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Measures the throughput and allocations of an operation: runs it a few times to warm up, then repeatedly for at
+ * least {@link #MIN_MILLIS}, and logs the averages under {@link #TAG}.
+ * <p>
+ * Allocations are counted with {@link Debug}'s per-thread counters, so only those made on the calling thread count.
+ * Counting slows allocation down, so compare times between runs of this harness rather than with other measurements.
+ */
+public class Benchmark {
+
+	public static final String TAG = "DialifyBenchmark";
+
+	private static final int WARM_UP_RUNS = 3;
+	private static final long MIN_MILLIS = 1000;
+
+	/** The averages of one measurement. */
+	public static class Result {
+		private int _runs;
+		public int getRuns() { return _runs; }
+
+		private double _nanosPerRun;
+		public double getNanosPerRun() { return _nanosPerRun; }
+
+		private double _allocationsPerRun;
+		public double getAllocationsPerRun() { return _allocationsPerRun; }
+
+		private double _bytesPerRun;
+		public double getBytesPerRun() { return _bytesPerRun; }
+
+		/** @return runs per second */
+		public double getThroughput() {
+			return 1e9 / _nanosPerRun;
+		}
+	}
+
+	/**
+	 * Measures the operation and logs the result.
+	 * @param name what is measured, e.g. "NotificationCleaner.run"
+	 * @param contacts the number of contacts it ran against, for the log
+	 */
+	public static Result measure(String name, int contacts, Runnable operation) {
+		for (int i = 0; i < WARM_UP_RUNS; i++) operation.run();
+
+		Result result = new Result();
+		long minNanos = MIN_MILLIS * 1000000;
+
+		Debug.resetThreadAllocCount();
+		Debug.resetThreadAllocSize();
+		Debug.startAllocCounting();
+
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			operation.run();
+			result._runs++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < minNanos);
+
+		Debug.stopAllocCounting();
+
+		result._nanosPerRun = (double)elapsed / result._runs;
+		result._allocationsPerRun = (double)Debug.getThreadAllocCount() / result._runs;
+		result._bytesPerRun = (double)Debug.getThreadAllocSize() / result._runs;
+
+		Log.i(TAG, String.format(
+				"%s at %d contacts: %.1f ops/s, %.3fms/op, %.1f allocs/op, %.0f bytes/op (%d runs)",
+				name, contacts, result.getThroughput(), result._nanosPerRun / 1000000.0,
+				result._allocationsPerRun, result._bytesPerRun, result._runs));
+
+		return result;
+	}
+
+}
@@ -0,0 +1,117 @@
+package org.hyperbard.dialify.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hyperbard.dialify.ContactIndex;
+import org.hyperbard.dialify.ContactSnapshot;
+import org.hyperbard.dialify.ContactSource;
+import org.hyperbard.dialify.ContactsHelper;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks text and dial pad searches of a {@link ContactIndex} over a few known contacts, and that narrowing a query
+ * finds what a fresh search would.
+ */
+public class ContactIndexTest extends AndroidTestCase {
+
+	private ContactIndex _index;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		FakeContactsContext context = new FakeContactsContext(getContext());
+		context.getProvider().fill(0);
+		context.getProvider().add("John Smith", "555-1234");
+		context.getProvider().add("Jane Doe", "555-9876");
+		context.getProvider().add("smithers Jones", "(444) 000-0000");
+		context.getProvider().add("\u00c9mile Zola", "123");
+
+		ContactsHelper.invalidateSnapshot();
+		_index = new ContactsHelper(context, ContactSource.DEVICE).getIndex();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ContactsHelper.invalidateSnapshot();
+		super.tearDown();
+	}
+
+	public void testSearchMatchesWordPrefixes() {
+		assertEquals(names("John Smith", "smithers Jones"), search("SMI"));
+		assertEquals(names("John Smith", "smithers Jones"), search("jo sm"));
+		assertEquals(names("John Smith"), search("john  smith"));
+		assertEquals(names("\u00c9mile Zola"), search("\u00e9m"));
+
+		//only the start of each word counts
+		assertEquals(names(), search("ohn"));
+	}
+
+	public void testSearchMatchesNumberPrefixes() {
+		assertEquals(names("Jane Doe", "John Smith"), search("555"));
+		assertEquals(names("John Smith"), search("555-1"));
+		assertEquals(names(), search("1234"));
+	}
+
+	public void testBlankQueryMatchesEverything() {
+		assertNull(_index.search(""));
+		assertNull(_index.search("  "));
+		assertNull(_index.searchDialPad("-"));
+	}
+
+	public void testDialPadMatchesSpelledNames() {
+		//JOHN
+		assertEquals(names("John Smith"), searchDialPad("5646"));
+		//SMITH, and SMITHERS
+		assertEquals(names("John Smith", "smithers Jones"), searchDialPad("76484"));
+		//words run together
+		assertEquals(names("John Smith"), searchDialPad("5646764"));
+		assertEquals(names("Jane Doe"), searchDialPad("5263"));
+	}
+
+	public void testDialPadMatchesNumberDigits() {
+		//separators in the number are skipped
+		assertEquals(names("smithers Jones"), searchDialPad("444000"));
+		assertEquals(names("Jane Doe", "John Smith"), searchDialPad("555"));
+		assertEquals(names("Jane Doe"), searchDialPad("5559"));
+	}
+
+	public void testNarrowingMatchesFreshSearch() {
+		String[] queries = { "j", "jo", "joh", "ja", "jo s", "jo sm", "s", "", "sm jo" };
+
+		for (String query : queries) {
+			ContactIndex fresh = new ContactIndex(_index.getSnapshot());
+			assertEquals(query, toNames(fresh.search(query)), toNames(_index.search(query)));
+		}
+	}
+
+	private List<String> search(String query) {
+		return toNames(_index.search(query));
+	}
+
+	private List<String> searchDialPad(String digits) {
+		return toNames(_index.searchDialPad(digits));
+	}
+
+	/** @return the names of the rows, sorted, or null for no rows (i.e. everything matches) */
+	private List<String> toNames(int[] rows) {
+		if (rows == null) return null;
+
+		ContactSnapshot snapshot = _index.getSnapshot();
+		List<String> names = new ArrayList<String>();
+		for (int row : rows) names.add(snapshot.getDisplayName(row));
+
+		Collections.sort(names);
+		return names;
+	}
+
+	private static List<String> names(String... names) {
+		List<String> sorted = new ArrayList<String>(Arrays.asList(names));
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+}
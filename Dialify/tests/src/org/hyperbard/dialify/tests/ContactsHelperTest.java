@@ -0,0 +1,120 @@
+package org.hyperbard.dialify.tests;
+
+import org.hyperbard.dialify.ContactSnapshot;
+import org.hyperbard.dialify.ContactSource;
+import org.hyperbard.dialify.ContactsHelper;
+import org.hyperbard.dialify.ContactsHelper.Contact;
+import org.hyperbard.dialify.ContactsHelper.Sort;
+
+import android.database.Cursor;
+import android.provider.Contacts.Phones;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that contacts read from a {@link FakeContactsProvider} in different ways come back complete and in the
+ * order the provider sorts them.
+ */
+public class ContactsHelperTest extends AndroidTestCase {
+
+	//enough phones for lookups by ID to take two queries
+	private static final int PHONES = 1200;
+
+	private FakeContactsContext _context;
+	private ContactsHelper _contactsHelper;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		_context = new FakeContactsContext(getContext());
+		_context.getProvider().fill(PHONES);
+		_contactsHelper = new ContactsHelper(_context, ContactSource.DEVICE);
+		ContactsHelper.invalidateSnapshot();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ContactsHelper.invalidateSnapshot();
+		super.tearDown();
+	}
+
+	public void testSnapshotMatchesProvider() {
+		Cursor phones = _context.getContentResolver().query(
+				Phones.CONTENT_URI,
+				new String[] { Phones._ID, Phones.DISPLAY_NAME, Phones.TYPE, Phones.LABEL, Phones.NUMBER, Phones.PERSON_ID },
+				null, null, Sort.ASC.getSort());
+		ContactSnapshot snapshot = _contactsHelper.getSnapshot();
+
+		assertEquals(PHONES, snapshot.getCount());
+
+		for (int row = 0; phones.moveToNext(); row++) {
+			Contact contact = _contactsHelper.getContactAtCursor(phones);
+
+			assertEquals(contact.getId(), snapshot.getId(row));
+			assertEquals(contact.getPersonId(), snapshot.getPersonId(row));
+			assertEquals(contact.getDisplayName(), snapshot.getDisplayName(row));
+			assertEquals(contact.getNumber(), snapshot.getNumber(row));
+			assertEquals(contact.getType(), snapshot.getType(row));
+
+			//custom types are labelled by the user, the others by the platform
+			if (phones.getInt(2) == Phones.TYPE_CUSTOM) assertEquals(phones.getString(3), contact.getType());
+			assertNotNull(contact.getType());
+		}
+
+		phones.close();
+	}
+
+	public void testLookupByIdsMergesQueries() {
+		//every other phone, in descending order of ID, with a duplicate
+		long[] ids = new long[PHONES / 2 + 1];
+		for (int i = 0; i < PHONES / 2; i++) ids[i] = PHONES - 2 * i;
+		ids[PHONES / 2] = ids[0];
+
+		//no snapshot is loaded, so the lookup goes to the provider
+		assertFalse(_contactsHelper.isSnapshotLoaded());
+		Cursor cursor = _contactsHelper.getContactsCursor(ids, Sort.ASC);
+
+		assertEquals(PHONES / 2, cursor.getCount());
+
+		String previous = "";
+		while (cursor.moveToNext()) {
+			Contact contact = _contactsHelper.getContactAtCursor(cursor);
+			assertEquals(0, contact.getId() % 2);
+
+			//sorted as SQLite's upper() sorts, which only folds ASCII letters
+			String name = upper(contact.getDisplayName());
+			assertTrue(previous + " sorted after " + name, previous.compareTo(name) <= 0);
+			previous = name;
+		}
+
+		cursor.close();
+	}
+
+	private static String upper(String s) {
+		StringBuilder upper = new StringBuilder(s);
+		for (int i = 0; i < upper.length(); i++) {
+			char c = upper.charAt(i);
+			if (c >= 'a' && c <= 'z') upper.setCharAt(i, (char)(c - 'a' + 'A'));
+		}
+		return upper.toString();
+	}
+
+	public void testFirstPageIsStartOfList() {
+		Cursor page = _contactsHelper.getFirstPageCursor(20);
+		Cursor all = _contactsHelper.getContactsCursor(Sort.ASC);
+
+		assertEquals(20, page.getCount());
+
+		while (page.moveToNext()) {
+			assertTrue(all.moveToNext());
+
+			//phones that sort equally may come back in either order, so only compare names
+			assertEquals(
+					_contactsHelper.getContactAtCursor(all).getDisplayName(),
+					_contactsHelper.getContactAtCursor(page).getDisplayName());
+		}
+
+		page.close();
+		all.close();
+	}
+
+}
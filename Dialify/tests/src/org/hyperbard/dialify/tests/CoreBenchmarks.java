@@ -0,0 +1,248 @@
+package org.hyperbard.dialify.tests;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.hyperbard.dialify.ContactCursorAdapter;
+import org.hyperbard.dialify.ContactSource;
+import org.hyperbard.dialify.ContactsHelper;
+import org.hyperbard.dialify.NotificationCleaner;
+import org.hyperbard.dialify.NotificationHelper;
+import org.hyperbard.dialify.NotificationQueue;
+import org.hyperbard.dialify.R;
+import org.hyperbard.dialify.SelectionManager;
+import org.hyperbard.dialify.ContactsHelper.Sort;
+import org.hyperbard.dialify.NotificationHelper.NotificationType;
+
+import android.app.Notification;
+import android.database.Cursor;
+import android.provider.Contacts.Phones;
+import android.test.AndroidTestCase;
+import android.view.View;
+
+/**
+ * Measures the throughput and allocations of the core helpers at 100, 10,000 and 100,000 contacts served by a
+ * {@link FakeContactsProvider}. Results are logged under {@link Benchmark#TAG}.
+ * <p>
+ * Notifications are posted to a stand-in that discards them rather than to the device, and the selections, saved
+ * notifications and preferences written are renamed by {@link FakeContactsContext}, so the app's own state is
+ * untouched. The largest size needs a device whose heap holds 100,000 contacts.
+ */
+public class CoreBenchmarks extends AndroidTestCase {
+
+	private static final int[] SIZES = { 100, 10000, 100000 };
+
+	//contacts given a call and a text selection, spread across all of them; well within the notification ID limit
+	private static final int SELECTED_CONTACTS = 100;
+
+	//contacts looked up by ID, enough to need more than one query
+	private static final int LOOKED_UP_CONTACTS = 1000;
+
+	private static final List<NotificationType> CALL = Arrays.asList(NotificationType.CALL);
+	private static final List<NotificationType> CALL_AND_TEXT =
+		Arrays.asList(NotificationType.CALL, NotificationType.TEXT);
+
+	//the columns read by ContactsHelper.getContactAtCursor, in its order
+	private static final String[] PROJECTION_PHONES = new String[] {
+		Phones._ID,
+		Phones.DISPLAY_NAME,
+		Phones.TYPE,
+		Phones.LABEL,
+		Phones.NUMBER,
+		Phones.PERSON_ID
+	};
+
+	private static final String DATABASE_NAME = "dialify.db";
+
+	//keeps nothing, as the renamed benchmarks post thousands of notifications
+	private static final NotificationQueue.Poster DISCARD = new NotificationQueue.Poster() {
+		public void notify(int notificationId, Notification notification) {}
+		public void cancel(int notificationId) {}
+		public void cancelAll() {}
+	};
+
+	private FakeContactsContext _context;
+	private ContactsHelper _contactsHelper;
+	private NotificationHelper _notificationHelper;
+	private SelectionManager _selectionManager;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		_context = new FakeContactsContext(getContext());
+		_contactsHelper = new ContactsHelper(_context, ContactSource.DEVICE);
+		_notificationHelper = new NotificationHelper(_context,
+				new NotificationQueue(DISCARD, NotificationHelper.DEFAULT_POSTS_PER_SECOND));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		_notificationHelper.setBundled(false);
+		_notificationHelper.removeAllNotifications();
+		_notificationHelper.saveNotifications();
+		_context.deleteDatabase(DATABASE_NAME);
+		ContactsHelper.invalidateSnapshot();
+		super.tearDown();
+	}
+
+	public void testSelectionManager() {
+		for (int size : SIZES) {
+			final long[] selected = fill(size, Math.min(SELECTED_CONTACTS, size));
+
+			Benchmark.measure("SelectionManager.setSelections+isSelected", size, new Runnable() {
+				private int _next;
+
+				public void run() {
+					long contactId = selected[_next++ % selected.length];
+					_selectionManager.setSelections(contactId, CALL);
+					_selectionManager.setSelections(contactId, CALL_AND_TEXT);
+
+					for (long id : selected) _selectionManager.isSelected(id);
+				}
+			});
+		}
+	}
+
+	public void testGetContactAtCursor() {
+		for (int size : SIZES) {
+			fill(size, 0);
+
+			final Cursor phones = _context.getContentResolver().query(
+					Phones.CONTENT_URI, PROJECTION_PHONES, null, null, null);
+			Benchmark.measure("ContactsHelper.getContactAtCursor (provider)", size, readAll(phones));
+			phones.close();
+
+			final Cursor snapshot = _contactsHelper.getContactsCursor(Sort.ASC);
+			Benchmark.measure("ContactsHelper.getContactAtCursor (snapshot)", size, readAll(snapshot));
+			snapshot.close();
+		}
+	}
+
+	/** @return an operation reading every contact of the cursor */
+	private Runnable readAll(final Cursor cursor) {
+		return new Runnable() {
+			public void run() {
+				cursor.moveToPosition(-1);
+				while (cursor.moveToNext()) _contactsHelper.getContactAtCursor(cursor);
+			}
+		};
+	}
+
+	public void testQuery() {
+		for (int size : SIZES) {
+			fill(size, 0);
+
+			Benchmark.measure("ContactsHelper.getSnapshot", size, new Runnable() {
+				public void run() {
+					ContactsHelper.invalidateSnapshot();
+					_contactsHelper.getSnapshot();
+				}
+			});
+
+			//without a snapshot the contacts are looked up with chunked queries
+			ContactsHelper.invalidateSnapshot();
+			final long[] ids = spread(size, Math.min(LOOKED_UP_CONTACTS, size));
+
+			Benchmark.measure("ContactsHelper.getContactsCursor(ids)", size, new Runnable() {
+				public void run() {
+					_contactsHelper.getContactsCursor(ids, Sort.ASC).close();
+				}
+			});
+		}
+	}
+
+	public void testNotificationCleanerRun() {
+		measureNotificationCleanerRun("");
+	}
+
+	public void testNotificationCleanerRunBundled() {
+		_notificationHelper.setBundled(true);
+		measureNotificationCleanerRun(", bundled");
+	}
+
+	private void measureNotificationCleanerRun(String mode) {
+		for (int size : SIZES) {
+			final long[] selected = fill(size, Math.min(SELECTED_CONTACTS, size));
+
+			final NotificationCleaner cleaner =
+				new NotificationCleaner(_contactsHelper, _selectionManager, _notificationHelper);
+			cleaner.run();
+
+			//the contacts were reread but none changed, so nothing is posted
+			Benchmark.measure("NotificationCleaner.run (unchanged" + mode + ")", size, new Runnable() {
+				public void run() {
+					ContactsHelper.invalidateSnapshot();
+					cleaner.run();
+				}
+			});
+
+			//every selected contact changed, so every notification is posted again; includes renaming them
+			Benchmark.measure("NotificationCleaner.run (renamed" + mode + ")", size, new Runnable() {
+				public void run() {
+					_context.getProvider().rename(selected);
+					ContactsHelper.invalidateSnapshot();
+					cleaner.run();
+				}
+			});
+
+			_notificationHelper.removeAllNotifications();
+		}
+	}
+
+	public void testBindView() {
+		for (int size : SIZES) {
+			fill(size, Math.min(SELECTED_CONTACTS, size));
+
+			Cursor phones = _context.getContentResolver().query(
+					Phones.CONTENT_URI, PROJECTION_PHONES, null, null, null);
+			Benchmark.measure("ContactCursorAdapter.bindView (provider)", size, bindAll(phones));
+			phones.close();
+
+			Cursor snapshot = _contactsHelper.getContactsCursor(Sort.ASC);
+			Benchmark.measure("ContactCursorAdapter.bindView (snapshot)", size, bindAll(snapshot));
+			snapshot.close();
+		}
+	}
+
+	/** @return an operation binding every row of the cursor to one view, as scrolling through the list would */
+	private Runnable bindAll(final Cursor cursor) {
+		final ContactCursorAdapter adapter =
+			new ContactCursorAdapter(_context, R.layout.contact, cursor, false, _selectionManager);
+
+		cursor.moveToFirst();
+		final View view = adapter.newView(_context, cursor, null);
+
+		return new Runnable() {
+			public void run() {
+				cursor.moveToPosition(-1);
+				while (cursor.moveToNext()) adapter.bindView(view, _context, cursor);
+			}
+		};
+	}
+
+	/**
+	 * Replaces the contacts and selections with fresh ones.
+	 * @param selections the number of contacts to give a call and a text selection
+	 * @return the IDs of those contacts
+	 */
+	private long[] fill(int contacts, int selections) {
+		_context.getProvider().fill(contacts);
+		ContactsHelper.invalidateSnapshot();
+
+		_context.deleteDatabase(DATABASE_NAME);
+		_selectionManager = new SelectionManager(_context);
+
+		long[] selected = spread(contacts, selections);
+		for (long contactId : selected) assertNotNull(_selectionManager.setSelections(contactId, CALL_AND_TEXT));
+
+		return selected;
+	}
+
+	/** @return count contact IDs spread evenly across IDs 1 to contacts */
+	private static long[] spread(int contacts, int count) {
+		long[] ids = new long[count];
+		for (int i = 0; i < count; i++) ids[i] = 1 + (long)i * contacts / count;
+		return ids;
+	}
+
+}
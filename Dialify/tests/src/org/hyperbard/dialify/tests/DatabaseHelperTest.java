@@ -0,0 +1,94 @@
+package org.hyperbard.dialify.tests;
+
+import org.hyperbard.dialify.SelectionManager;
+import org.hyperbard.dialify.DatabaseHelper.Selections;
+import org.hyperbard.dialify.NotificationHelper.NotificationType;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks the upgrade from schema version 1, which stored types as enum names and allowed duplicate selections, by
+ * loading a version 1 database through {@link SelectionManager}.
+ */
+public class DatabaseHelperTest extends AndroidTestCase {
+
+	private static final String DATABASE_NAME = "dialify.db";
+
+	private FakeContactsContext _context;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		_context = new FakeContactsContext(getContext());
+		_context.deleteDatabase(DATABASE_NAME);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		_context.deleteDatabase(DATABASE_NAME);
+		super.tearDown();
+	}
+
+	public void testUpgradeFromVersion1() {
+		SQLiteDatabase db = _context.openOrCreateDatabase(DATABASE_NAME, 0, null);
+		db.execSQL(
+			"CREATE TABLE " + Selections.TABLE_NAME + " ("
+				+ Selections.COLUMN_ID + " INTEGER PRIMARY KEY,"
+				+ Selections.COLUMN_NOTIFICATION_ID + " INTEGER,"
+				+ Selections.COLUMN_CONTACT_ID + " INTEGER,"
+				+ Selections.COLUMN_NOTIFICATION_TYPE + " TEXT"
+			+ ");");
+
+		insertVersion1(db, 0, 5, NotificationType.CALL.name());
+		//a duplicate; only the first of each contact and type is kept
+		insertVersion1(db, 1, 5, NotificationType.CALL.name());
+		insertVersion1(db, 2, 5, NotificationType.TEXT.name());
+		insertVersion1(db, 3, 7, NotificationType.TEXT.name());
+		//a type no version knows is dropped
+		insertVersion1(db, 4, 8, "EMAIL");
+
+		db.setVersion(1);
+		db.close();
+
+		SelectionManager selectionManager = new SelectionManager(_context);
+
+		assertEquals(3, selectionManager.getNumSelections());
+		assertFalse(selectionManager.isSelected(8));
+
+		//loaded in type code order, highest first
+		int[] notificationIds = selectionManager.getNotificationIdsForContact(5);
+		assertEquals(2, notificationIds.length);
+		assertEquals(2, notificationIds[0]);
+		assertEquals(0, notificationIds[1]);
+
+		db = _context.openOrCreateDatabase(DATABASE_NAME, 0, null);
+		try {
+			assertEquals(2, db.getVersion());
+
+			Cursor types = db.query(Selections.TABLE_NAME, new String[] { Selections.COLUMN_NOTIFICATION_TYPE },
+					Selections.COLUMN_CONTACT_ID + "=7", null, null, null, null);
+			assertTrue(types.moveToFirst());
+			assertEquals(NotificationType.TEXT.getCode(), types.getInt(0));
+			types.close();
+
+			Cursor index = db.query("sqlite_master", new String[] { "name" },
+					"type='index' AND name=?", new String[] { Selections.INDEX_CONTACT_TYPE }, null, null, null);
+			assertEquals(1, index.getCount());
+			index.close();
+		} finally {
+			db.close();
+		}
+	}
+
+	private static void insertVersion1(SQLiteDatabase db, int notificationId, long contactId, String type) {
+		ContentValues values = new ContentValues();
+		values.put(Selections.COLUMN_NOTIFICATION_ID, notificationId);
+		values.put(Selections.COLUMN_CONTACT_ID, contactId);
+		values.put(Selections.COLUMN_NOTIFICATION_TYPE, type);
+		db.insert(Selections.TABLE_NAME, null, values);
+	}
+
+}
@@ -0,0 +1,45 @@
+package org.hyperbard.dialify.tests;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.provider.Contacts;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+/**
+ * A context whose contacts come from a {@link FakeContactsProvider}, and whose databases, files and preferences are
+ * renamed so the app's own selections, saved notifications and settings are untouched.
+ * <p>
+ * Everything else, including the application context, notification manager and resources, is the real one; post
+ * through a {@link RecordingPoster} to keep notifications off the device.
+ */
+public class FakeContactsContext extends RenamingDelegatingContext {
+
+	private static final String PREFIX = "fake.";
+
+	private MockContentResolver _resolver = new MockContentResolver();
+	private FakeContactsProvider _provider = new FakeContactsProvider();
+
+	public FakeContactsContext(Context context) {
+		super(context, PREFIX);
+
+		_provider.onCreate();
+		_resolver.addProvider(Contacts.AUTHORITY, _provider);
+	}
+
+	public FakeContactsProvider getProvider() {
+		return _provider;
+	}
+
+	@Override
+	public ContentResolver getContentResolver() {
+		return _resolver;
+	}
+
+	@Override
+	public SharedPreferences getSharedPreferences(String name, int mode) {
+		return super.getSharedPreferences(PREFIX + name, mode);
+	}
+
+}
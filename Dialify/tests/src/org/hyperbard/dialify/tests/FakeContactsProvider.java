@@ -0,0 +1,181 @@
+package org.hyperbard.dialify.tests;
+
+import java.util.Random;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.provider.Contacts.Phones;
+
+/**
+ * Stands in for the contacts provider with an in-memory phones table, so {@link org.hyperbard.dialify.ContactsHelper}
+ * runs its real queries (selections, sort orders and the limits appended to them) against a known set of contacts.
+ * <p>
+ * Only phones are served. Any other URI, e.g. a person's photo, gets an empty cursor, so every contact shows the
+ * placeholder photo. Register it with {@link FakeContactsContext} rather than in a manifest.
+ */
+public class FakeContactsProvider extends ContentProvider {
+
+	//named as in the real provider, as ContactsHelper qualifies columns with it
+	private static final String TABLE_NAME = "phones";
+
+	private static final String[] FIRST_NAMES = {
+		"alice", "Bob", "Carol", "dave", "Eve", "Frank", "Grace", "Heidi", "Ivan", "Judy", "Mallory", "Olivia", "Peggy",
+		"Rupert", "Sybil", "Trent", "Victor", "Walter", "Zo\u00eb", "\u00c9mile"
+	};
+
+	private static final String[] LAST_NAMES = {
+		"Anderson", "brown", "Clark", "Davis", "Evans", "Garcia", "Harris", "Jones", "King", "Lee", "Miller", "Nguyen",
+		"O'Brien", "Smith", "Taylor", "Walker", "Young"
+	};
+
+	private static final String[] CUSTOM_LABELS = { "Boat", "cabin", "Satellite" };
+
+	private SQLiteDatabase _db;
+
+	@Override
+	public boolean onCreate() {
+		_db = SQLiteDatabase.create(null);
+		_db.execSQL(
+			"CREATE TABLE " + TABLE_NAME + " ("
+				+ Phones._ID + " INTEGER PRIMARY KEY,"
+				+ Phones.DISPLAY_NAME + " TEXT,"
+				+ Phones.TYPE + " INTEGER,"
+				+ Phones.LABEL + " TEXT,"
+				+ Phones.NUMBER + " TEXT,"
+				+ Phones.PERSON_ID + " INTEGER"
+			+ ");");
+
+		return true;
+	}
+
+	/**
+	 * Replaces the phones with generated ones. IDs run from 1 to the given number; people have one to three phones each,
+	 * some names are lower case or accented, and one phone in ten has a custom label. The same number always generates
+	 * the same phones.
+	 */
+	public void fill(int phones) {
+		Random random = new Random(phones);
+
+		SQLiteStatement insert = _db.compileStatement(
+				"INSERT INTO " + TABLE_NAME + " ("
+				+ Phones._ID + ","
+				+ Phones.DISPLAY_NAME + ","
+				+ Phones.TYPE + ","
+				+ Phones.LABEL + ","
+				+ Phones.NUMBER + ","
+				+ Phones.PERSON_ID
+				+ ") VALUES (?,?,?,?,?,?)");
+
+		_db.beginTransaction();
+		try {
+			_db.delete(TABLE_NAME, null, null);
+
+			long personId = 0;
+			String name = null;
+			int phonesLeft = 0;
+
+			for (int id = 1; id <= phones; id++) {
+				if (phonesLeft == 0) {
+					personId++;
+					name = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+						+ LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+					phonesLeft = 1 + random.nextInt(3);
+				}
+				phonesLeft--;
+
+				insert.bindLong(1, id);
+				insert.bindString(2, name);
+
+				if (random.nextInt(10) == 0) {
+					insert.bindLong(3, Phones.TYPE_CUSTOM);
+					insert.bindString(4, CUSTOM_LABELS[random.nextInt(CUSTOM_LABELS.length)]);
+				} else {
+					insert.bindLong(3, Phones.TYPE_HOME + random.nextInt(Phones.TYPE_WORK));
+					insert.bindNull(4);
+				}
+
+				insert.bindString(5, String.format("555-%04d-%04d", id / 10000, id % 10000));
+				insert.bindLong(6, personId);
+				insert.executeInsert();
+			}
+
+			_db.setTransactionSuccessful();
+		} finally {
+			_db.endTransaction();
+		}
+
+		insert.close();
+	}
+
+	/**
+	 * Adds a phone of the home type, as the only phone of a new person.
+	 * @return the phone's ID, one more than the highest so far
+	 */
+	public long add(String name, String number) {
+		long id = DatabaseUtils.longForQuery(
+				_db, "SELECT IFNULL(MAX(" + Phones._ID + "),0)+1 FROM " + TABLE_NAME, null);
+
+		ContentValues values = new ContentValues();
+		values.put(Phones._ID, id);
+		values.put(Phones.DISPLAY_NAME, name);
+		values.put(Phones.TYPE, Phones.TYPE_HOME);
+		values.put(Phones.NUMBER, number);
+		values.put(Phones.PERSON_ID, id);
+		_db.insert(TABLE_NAME, null, values);
+
+		return id;
+	}
+
+	/** Changes the names of the given phones, alternating between two versions of each on every call. */
+	public void rename(long[] ids) {
+		_db.beginTransaction();
+		try {
+			for (long id : ids) {
+				_db.execSQL(
+						"UPDATE " + TABLE_NAME + " SET " + Phones.DISPLAY_NAME + "="
+						+ "CASE WHEN substr(" + Phones.DISPLAY_NAME + ",-1)='*'"
+							+ " THEN substr(" + Phones.DISPLAY_NAME + ",1,length(" + Phones.DISPLAY_NAME + ")-1)"
+							+ " ELSE " + Phones.DISPLAY_NAME + "||'*' END"
+						+ " WHERE " + Phones._ID + "=?",
+						new Object[] { id });
+			}
+
+			_db.setTransactionSuccessful();
+		} finally {
+			_db.endTransaction();
+		}
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		if (!Phones.CONTENT_URI.equals(uri)) return new MatrixCursor(projection);
+		return _db.query(TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		return null;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException();
+	}
+
+}
@@ -0,0 +1,144 @@
+package org.hyperbard.dialify.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.hyperbard.dialify.ContactSnapshot;
+import org.hyperbard.dialify.ContactSource;
+import org.hyperbard.dialify.ContactsHelper;
+import org.hyperbard.dialify.NotificationHelper;
+import org.hyperbard.dialify.NotificationQueue;
+import org.hyperbard.dialify.SelectionManager;
+import org.hyperbard.dialify.NotificationHelper.NotificationType;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that a {@link NotificationHelper} posts only what changed and removes what it no longer needs, posting
+ * through a {@link RecordingPoster} rather than to the device.
+ */
+public class NotificationHelperTest extends AndroidTestCase {
+
+	private static final int PHONES = 20;
+
+	//bundled notifications are posted under IDs from the selection limit up
+	private static final int FIRST_BUNDLE_ID = SelectionManager.MAX_SELECTIONS_LIMIT;
+
+	private FakeContactsContext _context;
+	private ContactsHelper _contactsHelper;
+	private RecordingPoster _poster;
+	private NotificationHelper _notificationHelper;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		_context = new FakeContactsContext(getContext());
+		_context.getProvider().fill(PHONES);
+		ContactsHelper.invalidateSnapshot();
+		_contactsHelper = new ContactsHelper(_context, ContactSource.DEVICE);
+
+		_poster = new RecordingPoster();
+		_notificationHelper = new NotificationHelper(_context, new NotificationQueue(_poster, 1000));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		_notificationHelper.setBundled(false);
+		_notificationHelper.removeAllNotifications();
+		ContactsHelper.invalidateSnapshot();
+		super.tearDown();
+	}
+
+	public void testUnchangedNotificationIsNotPostedAgain() throws InterruptedException {
+		ContactSnapshot snapshot = _contactsHelper.getSnapshot();
+
+		assertTrue(_notificationHelper.updateNotification(NotificationType.CALL, 0, snapshot, 0));
+		assertFalse(_notificationHelper.updateNotification(NotificationType.CALL, 0, snapshot, 0));
+
+		//a reloaded snapshot with the same contents matches too
+		ContactsHelper.invalidateSnapshot();
+		snapshot = _contactsHelper.getSnapshot();
+		assertFalse(_notificationHelper.updateNotification(NotificationType.CALL, 0, snapshot, 0));
+
+		//a different type or contact under the same ID is posted
+		assertTrue(_notificationHelper.updateNotification(NotificationType.TEXT, 0, snapshot, 0));
+		assertTrue(_notificationHelper.updateNotification(NotificationType.TEXT, 0, snapshot, 1));
+
+		_poster.awaitPosts(1);
+	}
+
+	public void testRenamedContactIsPostedAgain() {
+		ContactSnapshot snapshot = _contactsHelper.getSnapshot();
+		long contactId = snapshot.getId(0);
+		assertTrue(_notificationHelper.updateNotification(NotificationType.CALL, 0, snapshot, 0));
+
+		_context.getProvider().rename(new long[] { contactId });
+		ContactsHelper.invalidateSnapshot();
+		snapshot = _contactsHelper.getSnapshot();
+
+		int row = snapshot.getRow(contactId);
+		assertTrue(_notificationHelper.updateNotification(NotificationType.CALL, 0, snapshot, row));
+		assertFalse(_notificationHelper.updateNotification(NotificationType.CALL, 0, snapshot, row));
+	}
+
+	public void testFirstRetainCancelsEverythingUnknown() {
+		ContactSnapshot snapshot = _contactsHelper.getSnapshot();
+		_notificationHelper.updateNotification(NotificationType.CALL, 0, snapshot, 0);
+		_notificationHelper.updateNotification(NotificationType.CALL, 1, snapshot, 1);
+
+		//an earlier process may have left anything below the limit, so the first pass cancels every unknown ID
+		_notificationHelper.retainNotifications(new HashSet<Integer>(Arrays.asList(0)), 5);
+		assertEquals(Arrays.asList(1, 2, 3, 4), sorted(_poster.getCancelledIds()));
+
+		//later passes only cancel what this helper posted
+		_notificationHelper.retainNotifications(new HashSet<Integer>(), 5);
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), sorted(_poster.getCancelledIds()));
+
+		//nothing is remembered for the cancelled IDs, so they are posted again
+		assertTrue(_notificationHelper.updateNotification(NotificationType.CALL, 0, snapshot, 0));
+	}
+
+	public void testRemoveAllForgetsEverything() {
+		ContactSnapshot snapshot = _contactsHelper.getSnapshot();
+		_notificationHelper.updateNotification(NotificationType.CALL, 0, snapshot, 0);
+
+		_notificationHelper.removeAllNotifications();
+		assertEquals(1, _poster.getCancelledAll());
+		assertTrue(_notificationHelper.updateNotification(NotificationType.CALL, 0, snapshot, 0));
+	}
+
+	public void testBundledPostsOneNotificationPerBundle() throws InterruptedException {
+		_notificationHelper.setBundled(true);
+
+		ContactSnapshot snapshot = _contactsHelper.getSnapshot();
+		for (int row = 0; row < 7; row++) {
+			_notificationHelper.updateNotification(NotificationType.CALL, row, snapshot, row);
+		}
+
+		//nothing is posted for the selections themselves
+		_notificationHelper.postBundles();
+		_poster.awaitPosts(2);
+		assertEquals(Arrays.asList(FIRST_BUNDLE_ID, FIRST_BUNDLE_ID + 1), sorted(_poster.getPostedIds()));
+
+		//posting again without changes posts nothing, and removing selections only posts the bundles again once asked
+		_notificationHelper.postBundles();
+		_notificationHelper.removeNotification(6);
+		_notificationHelper.removeNotification(5);
+		_notificationHelper.postBundles();
+
+		//the second bundle is left with nothing to show
+		_poster.awaitPosts(3);
+		assertEquals(FIRST_BUNDLE_ID, (int)_poster.getPostedIds().get(2));
+		assertTrue(_poster.getCancelledIds().contains(FIRST_BUNDLE_ID + 1));
+	}
+
+	private static List<Integer> sorted(List<Integer> ids) {
+		List<Integer> sorted = new ArrayList<Integer>(ids);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+}
@@ -0,0 +1,62 @@
+package org.hyperbard.dialify.tests;
+
+import org.hyperbard.dialify.NotificationIdAllocator;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a {@link NotificationIdAllocator} hands out each free ID once, lowest first, and skips reserved ones.
+ */
+public class NotificationIdAllocatorTest extends TestCase {
+
+	public void testAllocatesLowestFirst() {
+		NotificationIdAllocator ids = new NotificationIdAllocator(100, new int[0]);
+
+		for (int expected = 0; expected < 100; expected++) {
+			assertEquals(expected, ids.allocate());
+			assertTrue(ids.isInUse(expected));
+		}
+
+		assertEquals(-1, ids.allocate());
+		assertEquals(100, ids.getHighWater());
+	}
+
+	public void testSkipsReservedIds() {
+		//IDs out of range, e.g. left by an older version with a higher limit, are ignored
+		NotificationIdAllocator ids = new NotificationIdAllocator(10, new int[] { 0, 2, 3, 9, 10, -1 });
+
+		assertEquals(10, ids.getHighWater());
+		assertTrue(ids.isInUse(2));
+		assertFalse(ids.isInUse(10));
+
+		int[] expected = { 1, 4, 5, 6, 7, 8 };
+		for (int id : expected) assertEquals(id, ids.allocate());
+		assertEquals(-1, ids.allocate());
+	}
+
+	public void testReleasedIdsAreReused() {
+		NotificationIdAllocator ids = new NotificationIdAllocator(4, new int[0]);
+		for (int i = 0; i < 4; i++) ids.allocate();
+
+		ids.release(2);
+		assertFalse(ids.isInUse(2));
+
+		//releasing twice must not hand the ID out twice
+		ids.release(2);
+		ids.release(7);
+
+		assertEquals(2, ids.allocate());
+		assertEquals(-1, ids.allocate());
+	}
+
+	public void testHighWaterOutlivesRelease() {
+		NotificationIdAllocator ids = new NotificationIdAllocator(10, new int[0]);
+		ids.allocate();
+		ids.allocate();
+		ids.release(1);
+
+		//notifications may still be showing under IDs up to the high water mark
+		assertEquals(2, ids.getHighWater());
+	}
+
+}
@@ -0,0 +1,134 @@
+package org.hyperbard.dialify.tests;
+
+import java.util.Arrays;
+
+import org.hyperbard.dialify.NotificationQueue;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that a {@link NotificationQueue} merges waiting updates, posts the highest priority first, keeps to its
+ * budget and cancels replaced intents only once their replacement is posted.
+ * <p>
+ * Updates are queued while holding the queue's lock, which its posting thread also takes, so they are all waiting
+ * before any is posted.
+ */
+public class NotificationQueueTest extends AndroidTestCase {
+
+	//sent to check whether an intent has been cancelled; nothing receives it
+	private static final String ACTION_UNUSED = "org.hyperbard.dialify.tests.UNUSED";
+
+	private RecordingPoster _poster;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		_poster = new RecordingPoster();
+	}
+
+	public void testMergesUpdatesWaitingUnderOneId() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(_poster, 10);
+		Notification first = new Notification();
+		Notification second = new Notification();
+
+		synchronized (queue) {
+			queue.notify(1, first, 0, null);
+			queue.notify(1, second, 0, null);
+			assertEquals(1, queue.getPending());
+		}
+
+		_poster.awaitPosts(1);
+		assertEquals(Arrays.asList(1), _poster.getPostedIds());
+		assertSame(second, _poster.getPosted().get(0));
+	}
+
+	public void testPostsHighestPriorityFirst() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(_poster, 10);
+
+		synchronized (queue) {
+			queue.notify(1, new Notification(), 10, null);
+			queue.notify(2, new Notification(), 30, null);
+			queue.notify(3, new Notification(), 20, null);
+		}
+
+		_poster.awaitPosts(3);
+		assertEquals(Arrays.asList(2, 3, 1), _poster.getPostedIds());
+	}
+
+	public void testKeepsToBudget() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(_poster, 2);
+
+		synchronized (queue) {
+			for (int id = 0; id < 5; id++) queue.notify(id, new Notification(), 0, null);
+		}
+
+		//a second's worth goes at once and the rest waits for the budget to refill
+		_poster.awaitPosts(2);
+		assertEquals(3, queue.getPending());
+
+		_poster.awaitPosts(5);
+		assertEquals(0, queue.getPending());
+	}
+
+	public void testCancelDropsWaitingUpdate() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(_poster, 10);
+		Notification marker = new Notification();
+
+		synchronized (queue) {
+			queue.notify(1, new Notification(), 0, null);
+			queue.cancel(1);
+			queue.notify(2, marker, 0, null);
+		}
+
+		_poster.awaitPosts(1);
+		assertEquals(Arrays.asList(2), _poster.getPostedIds());
+		assertEquals(Arrays.asList(1), _poster.getCancelledIds());
+	}
+
+	public void testCancelsSupersededIntentOncePosted() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(_poster, 10);
+		PendingIntent showing = createIntent(0);
+
+		synchronized (queue) {
+			queue.notify(1, new Notification(), 0, showing);
+			assertFalse(isCancelled(showing));
+		}
+
+		_poster.awaitPosts(1);
+		assertTrue(isCancelled(showing));
+	}
+
+	public void testCancelsIntentOfMergedUpdateAtOnce() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(_poster, 10);
+		PendingIntent showing = createIntent(0);
+		PendingIntent neverShown = createIntent(1);
+
+		synchronized (queue) {
+			queue.notify(1, new Notification(), 0, showing);
+			queue.notify(1, new Notification(), 0, neverShown);
+
+			assertTrue(isCancelled(neverShown));
+			assertFalse(isCancelled(showing));
+		}
+
+		_poster.awaitPosts(1);
+		assertTrue(isCancelled(showing));
+	}
+
+	private PendingIntent createIntent(int requestCode) {
+		return PendingIntent.getBroadcast(getContext(), requestCode, new Intent(ACTION_UNUSED), 0);
+	}
+
+	private static boolean isCancelled(PendingIntent intent) {
+		try {
+			intent.send();
+			return false;
+		} catch (PendingIntent.CanceledException e) {
+			return true;
+		}
+	}
+
+}
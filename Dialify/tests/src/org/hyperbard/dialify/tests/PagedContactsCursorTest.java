@@ -0,0 +1,96 @@
+package org.hyperbard.dialify.tests;
+
+import org.hyperbard.dialify.ContactSource;
+import org.hyperbard.dialify.ContactsHelper;
+import org.hyperbard.dialify.PagedContactsCursor;
+import org.hyperbard.dialify.ContactsHelper.Sort;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that a {@link PagedContactsCursor} reads the same contacts in the same order as a whole snapshot, whichever
+ * way it moves across its windows. Windows are read in the background, so each row is compared once its window has
+ * replaced the placeholders.
+ */
+public class PagedContactsCursorTest extends AndroidTestCase {
+
+	//several windows, the last of them part full
+	private static final int PHONES = PagedContactsCursor.WINDOW_ROWS * 5 + 17;
+
+	//how long a window may take to be read
+	private static final long READ_TIMEOUT_MILLIS = 5000;
+
+	private ContactsHelper _contactsHelper;
+	private PagedContactsCursor _paged;
+	private Cursor _all;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		FakeContactsContext context = new FakeContactsContext(getContext());
+		context.getProvider().fill(PHONES);
+		ContactsHelper.invalidateSnapshot();
+
+		_contactsHelper = new ContactsHelper(context, ContactSource.DEVICE);
+		_paged = _contactsHelper.getPagedContactsCursor(_contactsHelper.countContacts());
+		_all = _contactsHelper.getContactsCursor(Sort.ASC);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		_paged.close();
+		_all.close();
+		ContactsHelper.invalidateSnapshot();
+		super.tearDown();
+	}
+
+	public void testReadsForwards() {
+		assertEquals(PHONES, _paged.getCount());
+
+		while (_paged.moveToNext()) {
+			assertTrue(_all.moveToNext());
+			assertSameName(_paged.getPosition());
+		}
+
+		assertFalse(_all.moveToNext());
+	}
+
+	public void testReadsBackwards() {
+		assertTrue(_paged.moveToLast());
+		assertTrue(_all.moveToLast());
+
+		do {
+			assertSameName(_paged.getPosition());
+			_all.moveToPrevious();
+		} while (_paged.moveToPrevious());
+	}
+
+	public void testJumpsBetweenWindows() {
+		int[] positions = {
+			PHONES - 1, 0, PagedContactsCursor.WINDOW_ROWS * 3 + 5, PagedContactsCursor.WINDOW_ROWS - 1,
+			PagedContactsCursor.WINDOW_ROWS, PHONES - 1
+		};
+
+		for (int position : positions) {
+			assertTrue(_paged.moveToPosition(position));
+			assertTrue(_all.moveToPosition(position));
+			assertSameName(position);
+		}
+	}
+
+	/** Phones that sort equally may come back in either order, so only names are compared. */
+	private void assertSameName(int position) {
+		long deadline = System.currentTimeMillis() + READ_TIMEOUT_MILLIS;
+		while (!_paged.isLoaded()) {
+			if (System.currentTimeMillis() > deadline) fail("window at position " + position + " never read");
+			SystemClock.sleep(10);
+		}
+
+		assertEquals("position " + position,
+				_contactsHelper.getContactAtCursor(_all).getDisplayName(),
+				_contactsHelper.getContactAtCursor(_paged).getDisplayName());
+	}
+
+}
@@ -0,0 +1,71 @@
+package org.hyperbard.dialify.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.hyperbard.dialify.NotificationQueue;
+
+import android.app.Notification;
+
+/**
+ * Stands in for the notification manager behind a {@link NotificationQueue}, recording what would have been posted
+ * and cancelled so tests can check it without touching the device's notifications.
+ */
+public class RecordingPoster implements NotificationQueue.Poster {
+
+	//how long to wait for the queue to post before failing
+	private static final long TIMEOUT_MILLIS = 5000;
+
+	private List<Integer> _postedIds = new ArrayList<Integer>();
+	private List<Notification> _posted = new ArrayList<Notification>();
+	private List<Integer> _cancelledIds = new ArrayList<Integer>();
+	private int _cancelledAll;
+
+	public synchronized void notify(int notificationId, Notification notification) {
+		_postedIds.add(notificationId);
+		_posted.add(notification);
+		notifyAll();
+	}
+
+	public synchronized void cancel(int notificationId) {
+		_cancelledIds.add(notificationId);
+	}
+
+	public synchronized void cancelAll() {
+		_cancelledAll++;
+	}
+
+	/** @return the IDs posted under so far, in the order they were posted */
+	public synchronized List<Integer> getPostedIds() {
+		return new ArrayList<Integer>(_postedIds);
+	}
+
+	/** @return the notifications posted so far, in the order they were posted */
+	public synchronized List<Notification> getPosted() {
+		return new ArrayList<Notification>(_posted);
+	}
+
+	/** @return the IDs cancelled so far, in the order they were cancelled */
+	public synchronized List<Integer> getCancelledIds() {
+		return new ArrayList<Integer>(_cancelledIds);
+	}
+
+	/** @return the number of times everything was cancelled */
+	public synchronized int getCancelledAll() {
+		return _cancelledAll;
+	}
+
+	/** Waits for the queue to have posted at least the given number of notifications in all. */
+	public synchronized void awaitPosts(int posts) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+		while (_posted.size() < posts) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) Assert.fail("only " + _posted.size() + " of " + posts + " notifications were posted");
+			wait(remaining);
+		}
+	}
+
+}
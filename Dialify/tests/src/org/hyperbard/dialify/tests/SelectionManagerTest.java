@@ -0,0 +1,124 @@
+package org.hyperbard.dialify.tests;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hyperbard.dialify.SelectionManager;
+import org.hyperbard.dialify.NotificationHelper.NotificationType;
+import org.hyperbard.dialify.SelectionManager.Selection;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that a {@link SelectionManager} keeps notification IDs stable for kept selections, frees those of removed
+ * ones, and persists everything across instances.
+ */
+public class SelectionManagerTest extends AndroidTestCase {
+
+	private static final String DATABASE_NAME = "dialify.db";
+
+	private static final List<NotificationType> CALL = Arrays.asList(NotificationType.CALL);
+	private static final List<NotificationType> TEXT = Arrays.asList(NotificationType.TEXT);
+	private static final List<NotificationType> CALL_AND_TEXT =
+		Arrays.asList(NotificationType.CALL, NotificationType.TEXT);
+
+	private FakeContactsContext _context;
+	private SelectionManager _selectionManager;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		_context = new FakeContactsContext(getContext());
+		_context.deleteDatabase(DATABASE_NAME);
+		_selectionManager = new SelectionManager(_context);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		_context.deleteDatabase(DATABASE_NAME);
+		super.tearDown();
+	}
+
+	public void testSetSelectionsKeepsIdsOfKeptTypes() {
+		int[] first = _selectionManager.setSelections(5, CALL_AND_TEXT);
+		assertEquals(0, first[0]);
+		assertEquals(1, first[1]);
+
+		//the text selection keeps its ID and the call selection's is freed
+		int[] second = _selectionManager.setSelections(5, TEXT);
+		assertEquals(1, second[0]);
+		assertEquals(1, _selectionManager.getNumSelections());
+
+		assertEquals(0, _selectionManager.setSelections(6, CALL)[0]);
+	}
+
+	public void testSetSelectionReturnsExistingId() {
+		int notificationId = _selectionManager.setSelection(5, NotificationType.CALL);
+
+		assertEquals(notificationId, _selectionManager.setSelection(5, NotificationType.CALL));
+		assertEquals(1, _selectionManager.getNumSelectionsForContact(5));
+	}
+
+	public void testSelectionsOrderedAsSet() {
+		_selectionManager.setSelections(5, Arrays.asList(NotificationType.TEXT, NotificationType.CALL));
+
+		List<Selection> selections = _selectionManager.getSelectionsForContactId(5);
+		assertEquals(NotificationType.TEXT, selections.get(0).getType());
+		assertEquals(NotificationType.CALL, selections.get(1).getType());
+	}
+
+	public void testDeleteFreesIds() {
+		_selectionManager.setSelections(5, CALL_AND_TEXT);
+
+		assertEquals(2, _selectionManager.deleteSelectionsForContact(5));
+		assertEquals(0, _selectionManager.deleteSelectionsForContact(5));
+		assertFalse(_selectionManager.isSelected(5));
+		assertNull(_selectionManager.getSelectionsForContactId(5));
+
+		int[] reused = _selectionManager.setSelections(6, CALL_AND_TEXT);
+		int[] sorted = reused.clone();
+		Arrays.sort(sorted);
+		assertEquals(0, sorted[0]);
+		assertEquals(1, sorted[1]);
+	}
+
+	public void testEmptyListDeletesSelections() {
+		_selectionManager.setSelections(5, CALL_AND_TEXT);
+		_selectionManager.setSelections(5, Collections.<NotificationType>emptyList());
+
+		assertFalse(_selectionManager.isSelected(5));
+		assertEquals(0, _selectionManager.getNumSelections());
+	}
+
+	public void testSelectionsPersist() {
+		_selectionManager.setSelections(9, CALL);
+		_selectionManager.setSelections(3, CALL_AND_TEXT);
+		int[] notificationIds = _selectionManager.getNotificationIdsForContact(3);
+
+		SelectionManager reloaded = new SelectionManager(_context);
+
+		assertEquals(3, reloaded.getNumSelections());
+		assertTrue(Arrays.equals(new long[] { 3, 9 }, reloaded.getContactIdsInUse()));
+
+		//loaded with the text selection first, as it has the higher type code
+		int[] reloadedIds = reloaded.getNotificationIdsForContact(3);
+		assertEquals(notificationIds[1], reloadedIds[0]);
+		assertEquals(notificationIds[0], reloadedIds[1]);
+
+		//the persisted IDs stay reserved
+		assertEquals(3, reloaded.setSelections(10, CALL)[0]);
+	}
+
+	public void testMaxSelectionsIsClamped() {
+		_selectionManager.setMaxSelections(SelectionManager.MAX_SELECTIONS_LIMIT + 1);
+		assertEquals(SelectionManager.MAX_SELECTIONS_LIMIT, _selectionManager.getMaxSelections());
+
+		_selectionManager.setMaxSelections(0);
+		assertEquals(1, _selectionManager.getMaxSelections());
+		assertTrue(_selectionManager.wouldExceedMaxSelections(2));
+
+		_selectionManager.setMaxSelections(SelectionManager.DEFAULT_MAX_SELECTIONS);
+	}
+
+}
@@ -0,0 +1,182 @@
+package org.hyperbard.dialify.tests;
+
+import org.hyperbard.dialify.SelectionManager;
+import org.hyperbard.dialify.DatabaseHelper.Selections;
+import org.hyperbard.dialify.NotificationHelper.NotificationType;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+/**
+ * Times loading and deleting selections at thousands of rows, before and after the upgrade to schema version 2.
+ * <p>
+ * Runs against a renamed copy of the database so the app's own selections are untouched. Results are logged under
+ * {@link #TAG}; the assertions only check that the upgrade kept the data.
+ */
+public class SelectionsBenchmark extends AndroidTestCase {
+
+	private static final String TAG = "SelectionsBenchmark";
+	
+	private static final String DATABASE_NAME = "dialify.db";
+	
+	//selections written for each run; each contact gets a call and a text selection
+	private static final int[] SIZES = { 1000, 5000 };
+	
+	//contacts deleted one at a time in each run
+	private static final int DELETES = 100;
+	
+	private Context _context;
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		_context = new RenamingDelegatingContext(getContext(), "benchmark.");
+		_context.deleteDatabase(DATABASE_NAME);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		_context.deleteDatabase(DATABASE_NAME);
+		super.tearDown();
+	}
+	
+	public void testLoadAndDelete() {
+		for (int size : SIZES) {
+			int contacts = size / 2;
+			
+			//version 1: no index and types stored as text
+			writeVersion1(size);
+			long loadVersion1 = timeQuery();
+			long deleteVersion1 = timeDeletes(contacts);
+			
+			//upgrade a fresh copy, then time the same work through SelectionManager
+			_context.deleteDatabase(DATABASE_NAME);
+			writeVersion1(size);
+			
+			long start = System.nanoTime();
+			SelectionManager upgraded = new SelectionManager(_context);
+			long upgrade = System.nanoTime() - start;
+			
+			assertEquals(size, upgraded.getNumSelections());
+			assertEquals(contacts, upgraded.getContactIdsInUse().length);
+			
+			start = System.nanoTime();
+			SelectionManager selections = new SelectionManager(_context);
+			long load = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			for (int contact = 0; contact < DELETES; contact++) {
+				assertEquals(2, selections.deleteSelectionsForContact(contactIdFor(contact, contacts)));
+			}
+			long delete = System.nanoTime() - start;
+			
+			assertEquals(size - 2 * DELETES, selections.getNumSelections());
+			
+			Log.i(TAG, String.format(
+					"%d rows: v1 query %.1fms, v1 %d deletes %.1fms;"
+					+ " upgrade+load %.1fms, v2 load %.1fms, v2 %d deletes %.1fms",
+					size, millis(loadVersion1), DELETES, millis(deleteVersion1),
+					millis(upgrade), millis(load), DELETES, millis(delete)));
+			
+			_context.deleteDatabase(DATABASE_NAME);
+		}
+	}
+	
+	/** Writes a version 1 database holding the given number of selections. */
+	private void writeVersion1(int size) {
+		int contacts = size / 2;
+		SQLiteDatabase db = _context.openOrCreateDatabase(DATABASE_NAME, 0, null);
+		
+		db.execSQL(
+			"CREATE TABLE " + Selections.TABLE_NAME + " ("
+				+ Selections.COLUMN_ID + " INTEGER PRIMARY KEY,"
+				+ Selections.COLUMN_NOTIFICATION_ID + " INTEGER,"
+				+ Selections.COLUMN_CONTACT_ID + " INTEGER,"
+				+ Selections.COLUMN_NOTIFICATION_TYPE + " TEXT"
+			+ ");");
+		
+		SQLiteStatement insert = db.compileStatement(
+				"INSERT INTO " + Selections.TABLE_NAME + " ("
+				+ Selections.COLUMN_NOTIFICATION_ID + ","
+				+ Selections.COLUMN_CONTACT_ID + ","
+				+ Selections.COLUMN_NOTIFICATION_TYPE
+				+ ") VALUES (?,?,?)");
+		
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < size; i++) {
+				insert.bindLong(1, i % SelectionManager.MAX_SELECTIONS_LIMIT);
+				insert.bindLong(2, contactIdFor(i % contacts, contacts));
+				insert.bindString(3, (i < contacts ? NotificationType.CALL : NotificationType.TEXT).name());
+				insert.executeInsert();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		
+		insert.close();
+		db.setVersion(1);
+		db.close();
+	}
+	
+	/** Times the query version 1 made to load selections. */
+	private long timeQuery() {
+		SQLiteDatabase db = _context.openOrCreateDatabase(DATABASE_NAME, 0, null);
+		
+		long start = System.nanoTime();
+		Cursor cursor = db.query(
+				Selections.TABLE_NAME,
+				new String[] {
+					Selections.COLUMN_NOTIFICATION_ID,
+					Selections.COLUMN_CONTACT_ID,
+					Selections.COLUMN_NOTIFICATION_TYPE
+				},
+				null, null, null, null,
+				Selections.COLUMN_CONTACT_ID + "," + Selections.COLUMN_NOTIFICATION_TYPE + " DESC");
+		
+		while (cursor.moveToNext()) {
+			cursor.getInt(0);
+			cursor.getLong(1);
+			NotificationType.valueOf(cursor.getString(2));
+		}
+		
+		cursor.close();
+		long elapsed = System.nanoTime() - start;
+		
+		db.close();
+		return elapsed;
+	}
+	
+	/** Times the deletes version 1 made, one contact at a time. */
+	private long timeDeletes(int contacts) {
+		SQLiteDatabase db = _context.openOrCreateDatabase(DATABASE_NAME, 0, null);
+		
+		long start = System.nanoTime();
+		for (int contact = 0; contact < DELETES; contact++) {
+			db.delete(
+					Selections.TABLE_NAME,
+					Selections.COLUMN_CONTACT_ID + "=?",
+					new String[] { String.valueOf(contactIdFor(contact, contacts)) });
+		}
+		long elapsed = System.nanoTime() - start;
+		
+		db.close();
+		return elapsed;
+	}
+	
+	/** Spreads contact IDs out so they aren't inserted in order, as they wouldn't be in practice. */
+	private static long contactIdFor(int contact, int contacts) {
+		return (contact * 7919L) % contacts + 1;
+	}
+	
+	private static double millis(long nanos) {
+		return nanos / 1000000.0;
+	}
+	
+}